@@ -4,34 +4,69 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteOpenHelper;
-import android.provider.BaseColumns;
+import android.util.Log;
 
-public class MirrorsDbHelper extends SQLiteOpenHelper {
+import org.lineageos.updater.UpdatesDbHelper.MirrorScoresEntry;
+import org.lineageos.updater.UpdatesDbHelper.MirrorsEntry;
+import org.lineageos.updater.misc.Metrics;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The mirror chosen for each update and the scores of the mirrors, stored in the
+ * updates database. Both tables are kept in memory, loaded on first use. Lookups are
+ * served from memory and changes are written through to the database on the calling
+ * thread, which shouldn't be the UI thread.
+ */
+public class MirrorsDbHelper {
+
+    private static final String TAG = "MirrorsDbHelper";
 
     private static MirrorsDbHelper mirrorsDbHelper = null;
 
-    public static final int DATABASE_VERSION = 1;
-    public static final String MIRRORS_DATABASE_NAME = "mirrors.db";
+    public static class MirrorScore {
+        private final String mMirrorName;
+        private final double mScore;
+        private final long mTimestamp;
+
+        public MirrorScore(String mirrorName, double score, long timestamp) {
+            mMirrorName = mirrorName;
+            mScore = score;
+            mTimestamp = timestamp;
+        }
+
+        public String getMirrorName() {
+            return mMirrorName;
+        }
 
-    public static class MirrorsEntry implements BaseColumns {
-        public static final String TABLE_NAME = "mirrors";
-        public static final String COLUMN_NAME_DOWNLOAD_ID = "download_id";
-        public static final String COLUMN_NAME_MIRROR = "mirror_name";
-        public static final String COLUMN_NAME_MIRROR_URL = "mirror_url";
+        public double getScore() {
+            return mScore;
+        }
+
+        public long getTimestamp() {
+            return mTimestamp;
+        }
     }
 
-    private static final String SQL_CREATE_ENTRIES =
-            "CREATE TABLE " + MirrorsDbHelper.MirrorsEntry.TABLE_NAME + " (" +
-                    MirrorsEntry._ID + " INTEGER PRIMARY KEY," +
-                    MirrorsEntry.COLUMN_NAME_DOWNLOAD_ID + " TEXT NOT NULL UNIQUE," +
-                    MirrorsEntry.COLUMN_NAME_MIRROR + " TEXT," +
-                    MirrorsEntry.COLUMN_NAME_MIRROR_URL + " TEXT)";
+    private static class MirrorRow {
+        private String mMirrorName;
+        private String mMirrorUrl;
+    }
+
+    private final UpdatesDbHelper mDbHelper;
+    // Held while loading or writing, so that the maps change in the same order as
+    // the database
+    private final Object mWriteLock = new Object();
+    private volatile boolean mLoaded;
 
-    private static final String SQL_DELETE_ENTRIES =
-            "DROP TABLE IF EXISTS " + MirrorsDbHelper.MirrorsEntry.TABLE_NAME;
+    // Guarded by this
+    private final Map<String, MirrorRow> mMirrors = new HashMap<>();
+    private final Map<String, MirrorScore> mScores = new HashMap<>();
 
-    public static MirrorsDbHelper getInstance(Context context) {
+    public static synchronized MirrorsDbHelper getInstance(Context context) {
         if (mirrorsDbHelper == null) {
             mirrorsDbHelper = new MirrorsDbHelper(context.getApplicationContext());
         }
@@ -39,99 +74,205 @@ public class MirrorsDbHelper extends SQLiteOpenHelper {
     }
 
     private MirrorsDbHelper(Context context) {
-        super(context, MIRRORS_DATABASE_NAME, null, DATABASE_VERSION);
-    }
-
-    public void onCreate(SQLiteDatabase db) {
-        db.execSQL(SQL_CREATE_ENTRIES);
+        mDbHelper = UpdatesDbHelper.getInstance(context);
     }
 
-    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL(SQL_DELETE_ENTRIES);
-        onCreate(db);
+    /**
+     * Load the mirrors if not done yet. Called by every other method but
+     * {@link #peekMirrorName(String)}, so these shouldn't be used on the UI thread.
+     */
+    public void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        synchronized (mWriteLock) {
+            if (!mLoaded) {
+                load();
+                mLoaded = true;
+            }
+        }
     }
 
-    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        onUpgrade(db, oldVersion, newVersion);
+    private void load() {
+        Metrics.Timer timer = Metrics.beginSection("db.load_mirrors_ms");
+        try {
+            Map<String, MirrorRow> mirrors = new HashMap<>();
+            SQLiteDatabase db = mDbHelper.getWritableDatabase();
+            String[] projection = {
+                    MirrorsEntry.COLUMN_NAME_DOWNLOAD_ID,
+                    MirrorsEntry.COLUMN_NAME_MIRROR,
+                    MirrorsEntry.COLUMN_NAME_MIRROR_URL,
+            };
+            try (Cursor cursor = db.query(MirrorsEntry.TABLE_NAME, projection, null, null,
+                    null, null, null)) {
+                while (cursor.moveToNext()) {
+                    MirrorRow row = new MirrorRow();
+                    row.mMirrorName = cursor.getString(1);
+                    row.mMirrorUrl = cursor.getString(2);
+                    mirrors.put(cursor.getString(0), row);
+                }
+            }
+            List<MirrorScore> scores = queryMirrorScores(db);
+            synchronized (this) {
+                mMirrors.putAll(mirrors);
+                for (MirrorScore score : scores) {
+                    mScores.put(score.getMirrorName(), score);
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Could not load the mirrors database", e);
+        } finally {
+            timer.stop();
+        }
     }
 
     public void setUpdate(String downloadId) {
-        SQLiteDatabase db = getWritableDatabase();
-        ContentValues values = new ContentValues();
-        values.put(MirrorsEntry.COLUMN_NAME_DOWNLOAD_ID, downloadId);
-        db.insert(MirrorsEntry.TABLE_NAME, null, values);
+        synchronized (mWriteLock) {
+            ensureLoaded();
+            synchronized (this) {
+                if (mMirrors.containsKey(downloadId)) {
+                    return;
+                }
+            }
+            SQLiteDatabase db = mDbHelper.getWritableDatabase();
+            ContentValues values = new ContentValues();
+            values.put(MirrorsEntry.COLUMN_NAME_DOWNLOAD_ID, downloadId);
+            db.insert(MirrorsEntry.TABLE_NAME, null, values);
+            synchronized (this) {
+                mMirrors.put(downloadId, new MirrorRow());
+            }
+        }
     }
 
     public Boolean isUpdateExists(String downloadId) {
-        SQLiteDatabase db = getWritableDatabase();
-        boolean isExists = false;
-        String selection = MirrorsEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
-        String[] selectionArgs = {downloadId};
-        try (Cursor cursor = db.query(MirrorsEntry.TABLE_NAME, null, selection, selectionArgs, null, null, null)) {
-            while (cursor.moveToNext()) {
-                int index = cursor.getColumnIndex(MirrorsEntry.COLUMN_NAME_DOWNLOAD_ID);
-                String res = cursor.getString(index);
-                if (res.equals(downloadId)) {
-                    isExists = true;
-                    break;
-                }
-            }
+        ensureLoaded();
+        synchronized (this) {
+            return mMirrors.containsKey(downloadId);
         }
-        return isExists;
     }
 
     public void delUpdate(String downloadId) {
-        SQLiteDatabase db = getWritableDatabase();
-        String selection = MirrorsEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
-        String[] selectionArgs = {downloadId};
-        db.delete(MirrorsEntry.TABLE_NAME, selection, selectionArgs);
+        synchronized (mWriteLock) {
+            ensureLoaded();
+            SQLiteDatabase db = mDbHelper.getWritableDatabase();
+            String selection = MirrorsEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
+            String[] selectionArgs = {downloadId};
+            db.delete(MirrorsEntry.TABLE_NAME, selection, selectionArgs);
+            synchronized (this) {
+                mMirrors.remove(downloadId);
+            }
+        }
     }
 
     public void setMirrorUrl(String mirrorUrl, String downloadId) {
-        SQLiteDatabase db = getWritableDatabase();
-        ContentValues values = new ContentValues();
-        String download_id_column = MirrorsEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
-        String[] args = {downloadId};
-        values.put(MirrorsEntry.COLUMN_NAME_MIRROR_URL, mirrorUrl);
-        db.update(MirrorsEntry.TABLE_NAME, values, download_id_column, args);
+        synchronized (mWriteLock) {
+            ensureLoaded();
+            SQLiteDatabase db = mDbHelper.getWritableDatabase();
+            ContentValues values = new ContentValues();
+            String download_id_column = MirrorsEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
+            String[] args = {downloadId};
+            values.put(MirrorsEntry.COLUMN_NAME_MIRROR_URL, mirrorUrl);
+            db.update(MirrorsEntry.TABLE_NAME, values, download_id_column, args);
+            synchronized (this) {
+                // Like the database, only known updates are changed
+                MirrorRow row = mMirrors.get(downloadId);
+                if (row != null) {
+                    row.mMirrorUrl = mirrorUrl;
+                }
+            }
+        }
     }
 
+    /**
+     * @return the mirror URL, null if not set or an empty string if the update is unknown
+     */
     public String getMirrorUrl(String downloadId) {
-        SQLiteDatabase db = getWritableDatabase();
-        String res = "";
-        String download_id_column = MirrorsEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
-        String[] get_columns = {MirrorsEntry.COLUMN_NAME_MIRROR_URL};
-        String[] args = {downloadId};
-        try (Cursor cursor = db.query(MirrorsEntry.TABLE_NAME, get_columns, download_id_column, args, null, null, null)) {
-            while (cursor.moveToNext()) {
-                int index = cursor.getColumnIndex(MirrorsEntry.COLUMN_NAME_MIRROR_URL);
-                res = cursor.getString(index);
-            }
+        ensureLoaded();
+        synchronized (this) {
+            MirrorRow row = mMirrors.get(downloadId);
+            return row != null ? row.mMirrorUrl : "";
         }
-        return res;
     }
 
     public void setMirrorName(String mirrorName, String downloadId) {
-        SQLiteDatabase db = getWritableDatabase();
-        ContentValues values = new ContentValues();
-        String download_id_column = MirrorsEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?" ;
-        String[] args = {downloadId};
-        values.put(MirrorsEntry.COLUMN_NAME_MIRROR, mirrorName);
-        db.update(MirrorsEntry.TABLE_NAME, values, download_id_column, args);
+        synchronized (mWriteLock) {
+            ensureLoaded();
+            SQLiteDatabase db = mDbHelper.getWritableDatabase();
+            ContentValues values = new ContentValues();
+            String download_id_column = MirrorsEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
+            String[] args = {downloadId};
+            values.put(MirrorsEntry.COLUMN_NAME_MIRROR, mirrorName);
+            db.update(MirrorsEntry.TABLE_NAME, values, download_id_column, args);
+            synchronized (this) {
+                MirrorRow row = mMirrors.get(downloadId);
+                if (row != null) {
+                    row.mMirrorName = mirrorName;
+                }
+            }
+        }
     }
 
+    /**
+     * @return the mirror name, null if not set or "unknown" if the update is unknown
+     */
     public String getMirrorName(String downloadId) {
-        SQLiteDatabase db = getWritableDatabase();
-        String res = "unknown";
-        String download_id_column = MirrorsEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
-        String[] get_columns = {MirrorsEntry.COLUMN_NAME_MIRROR};
-        String[] args = {downloadId};
-        try (Cursor cursor = db.query(MirrorsEntry.TABLE_NAME, get_columns, download_id_column, args, null, null, null)) {
+        ensureLoaded();
+        return peekMirrorName(downloadId);
+    }
+
+    /**
+     * Like {@link #getMirrorName(String)}, without waiting for the mirrors to be
+     * loaded. Safe to call from the UI thread.
+     *
+     * @return the mirror name, null if not set or not loaded yet
+     */
+    public String peekMirrorName(String downloadId) {
+        if (!mLoaded) {
+            return null;
+        }
+        synchronized (this) {
+            MirrorRow row = mMirrors.get(downloadId);
+            return row != null ? row.mMirrorName : "unknown";
+        }
+    }
+
+    public void setMirrorScore(MirrorScore score) {
+        synchronized (mWriteLock) {
+            ensureLoaded();
+            SQLiteDatabase db = mDbHelper.getWritableDatabase();
+            ContentValues values = new ContentValues();
+            values.put(MirrorScoresEntry.COLUMN_NAME_MIRROR, score.getMirrorName());
+            values.put(MirrorScoresEntry.COLUMN_NAME_SCORE, score.getScore());
+            values.put(MirrorScoresEntry.COLUMN_NAME_TIMESTAMP, score.getTimestamp());
+            db.insertWithOnConflict(MirrorScoresEntry.TABLE_NAME, null, values,
+                    SQLiteDatabase.CONFLICT_REPLACE);
+            synchronized (this) {
+                mScores.put(score.getMirrorName(), score);
+            }
+        }
+    }
+
+    public List<MirrorScore> getMirrorScores() {
+        ensureLoaded();
+        synchronized (this) {
+            return new ArrayList<>(mScores.values());
+        }
+    }
+
+    private static List<MirrorScore> queryMirrorScores(SQLiteDatabase db) {
+        String[] projection = {
+                MirrorScoresEntry.COLUMN_NAME_MIRROR,
+                MirrorScoresEntry.COLUMN_NAME_SCORE,
+                MirrorScoresEntry.COLUMN_NAME_TIMESTAMP,
+        };
+        List<MirrorScore> scores = new ArrayList<>();
+        try (Cursor cursor = db.query(MirrorScoresEntry.TABLE_NAME, projection, null, null,
+                null, null, null)) {
             while (cursor.moveToNext()) {
-                int index = cursor.getColumnIndex(MirrorsEntry.COLUMN_NAME_MIRROR);
-                res = cursor.getString(index);
+                scores.add(new MirrorScore(cursor.getString(0), cursor.getDouble(1),
+                        cursor.getLong(2)));
             }
         }
-        return res;
+        return scores;
     }
 }
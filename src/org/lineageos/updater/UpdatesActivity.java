@@ -16,11 +16,9 @@
 package org.lineageos.updater;
 
 import android.animation.ObjectAnimator;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.icu.text.DateFormat;
@@ -41,7 +39,6 @@ import android.widget.TextView;
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.widget.Toolbar;
 import androidx.cardview.widget.CardView;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import androidx.preference.PreferenceManager;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
@@ -50,17 +47,19 @@ import androidx.recyclerview.widget.SimpleItemAnimator;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 import com.google.android.material.snackbar.Snackbar;
 
-import org.json.JSONException;
 import org.lineageos.updater.controller.UpdaterController;
 import org.lineageos.updater.controller.UpdaterService;
 import org.lineageos.updater.download.DownloadClient;
 import org.lineageos.updater.misc.Constants;
+import org.lineageos.updater.misc.Metrics;
 import org.lineageos.updater.misc.StringGenerator;
+import org.lineageos.updater.misc.UpdatesListCache;
 import org.lineageos.updater.misc.Utils;
 import org.lineageos.updater.model.UpdateInfo;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.HttpURLConnection;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -71,7 +70,7 @@ public class UpdatesActivity extends UpdatesListActivity {
 
     private static final String TAG = "UpdatesActivity";
     private UpdaterService mUpdaterService;
-    private BroadcastReceiver mBroadcastReceiver;
+    private UpdaterController.UpdateListener mUpdateListener;
 
     private static UpdatesListAdapter mAdapter;
 
@@ -104,22 +103,27 @@ public class UpdatesActivity extends UpdatesListActivity {
         mRefreshIconButton = findViewById(R.id.refresh);
         mUpdateText = findViewById(R.id.updates_message);
 
-        mBroadcastReceiver = new BroadcastReceiver() {
+        mUpdateListener = new UpdaterController.UpdateListener() {
             @Override
-            public void onReceive(Context context, Intent intent) {
-                if (UpdaterController.ACTION_UPDATE_STATUS.equals(intent.getAction())) {
-                    String downloadId = intent.getStringExtra(UpdaterController.EXTRA_DOWNLOAD_ID);
-                    handleDownloadStatusChange(downloadId);
-                    mAdapter.notifyDataSetChanged();
-                } else if (UpdaterController.ACTION_DOWNLOAD_PROGRESS.equals(intent.getAction()) ||
-                        UpdaterController.ACTION_INSTALL_PROGRESS.equals(intent.getAction())) {
-                    String downloadId = intent.getStringExtra(UpdaterController.EXTRA_DOWNLOAD_ID);
-                    mAdapter.notifyItemChanged(downloadId);
-                } else if (UpdaterController.ACTION_UPDATE_REMOVED.equals(intent.getAction())) {
-                    String downloadId = intent.getStringExtra(UpdaterController.EXTRA_DOWNLOAD_ID);
-                    mAdapter.removeItem(downloadId);
-                    downloadUpdatesList(false);
-                }
+            public void onUpdateStatusChanged(UpdateInfo update) {
+                handleDownloadStatusChange(update);
+                mAdapter.notifyDataSetChanged();
+            }
+
+            @Override
+            public void onDownloadProgress(UpdateInfo update) {
+                mAdapter.notifyItemChanged(update.getDownloadId());
+            }
+
+            @Override
+            public void onInstallProgress(UpdateInfo update) {
+                mAdapter.notifyItemChanged(update.getDownloadId());
+            }
+
+            @Override
+            public void onUpdateRemoved(UpdateInfo update) {
+                mAdapter.removeItem(update.getDownloadId());
+                downloadUpdatesList(false);
             }
         };
 
@@ -160,19 +164,40 @@ public class UpdatesActivity extends UpdatesListActivity {
         startService(intent);
         bindService(intent, mConnection, Context.BIND_AUTO_CREATE);
 
-        IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(UpdaterController.ACTION_UPDATE_STATUS);
-        intentFilter.addAction(UpdaterController.ACTION_DOWNLOAD_PROGRESS);
-        intentFilter.addAction(UpdaterController.ACTION_INSTALL_PROGRESS);
-        intentFilter.addAction(UpdaterController.ACTION_UPDATE_REMOVED);
-        LocalBroadcastManager.getInstance(this).registerReceiver(mBroadcastReceiver, intentFilter);
+        // Show the cached list while the controller loads the stored updates
+        File jsonFile = Utils.getCachedUpdateList(this);
+        if (jsonFile.exists()) {
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(() -> {
+                List<UpdateInfo> updates;
+                try {
+                    updates = new ArrayList<>(UpdatesListCache.getUpdates(jsonFile));
+                } catch (IOException e) {
+                    Log.e(TAG, "Error while parsing json list", e);
+                    return;
+                }
+                updates.sort((u1, u2) -> Long.compare(u2.getTimestamp(), u1.getTimestamp()));
+                runOnUiThread(() -> showCachedUpdates(updates));
+            });
+        }
+    }
+
+    private void showCachedUpdates(List<UpdateInfo> updates) {
+        if (mUpdaterService != null && mUpdaterService.getUpdaterController().isReady()) {
+            // The list of the controller is shown instead, it includes these updates
+            return;
+        }
+        if (!updates.isEmpty()) {
+            findViewById(R.id.recycler_view).setVisibility(View.VISIBLE);
+            mAdapter.setPreview(updates);
+        }
     }
 
     @Override
     public void onStop() {
-        LocalBroadcastManager.getInstance(this).unregisterReceiver(mBroadcastReceiver);
         if (mUpdaterService != null) {
+            mUpdaterService.getUpdaterController().removeUpdateListener(mUpdateListener);
             unbindService(mConnection);
+            mUpdaterService = null;
         }
         super.onStop();
     }
@@ -217,12 +242,21 @@ public class UpdatesActivity extends UpdatesListActivity {
                 IBinder service) {
             UpdaterService.LocalBinder binder = (UpdaterService.LocalBinder) service;
             mUpdaterService = binder.getService();
-            mAdapter.setUpdaterController(mUpdaterService.getUpdaterController());
-            getUpdatesList();
+            UpdaterController controller = mUpdaterService.getUpdaterController();
+            controller.addUpdateListener(mUpdateListener);
+            controller.whenReady(() -> {
+                if (mUpdaterService == null) {
+                    // Stopped in the meantime
+                    return;
+                }
+                mAdapter.setUpdaterController(controller);
+                getUpdatesList();
+            });
         }
 
         @Override
         public void onServiceDisconnected(ComponentName componentName) {
+            mUpdaterService.getUpdaterController().removeUpdateListener(mUpdateListener);
             mAdapter.setUpdaterController(null);
             mUpdaterService = null;
             mAdapter.notifyDataSetChanged();
@@ -230,12 +264,19 @@ public class UpdatesActivity extends UpdatesListActivity {
     };
 
     private void loadUpdatesList(File jsonFile, boolean manualRefresh)
-            throws IOException, JSONException {
+            throws IOException {
+        List<UpdateInfo> updates = UpdatesListCache.getUpdates(jsonFile);
+        if (mUpdaterService == null) {
+            // Stopped while the list was downloaded, the cached list is loaded once the
+            // service is connected again
+            Log.d(TAG, "Not connected, not adding remote updates");
+            return;
+        }
+
         Log.d(TAG, "Adding remote updates");
         UpdaterController controller = mUpdaterService.getUpdaterController();
         boolean newUpdates = false;
 
-        List<UpdateInfo> updates = Utils.parseJson(jsonFile, true);
         List<String> updatesOnline = new ArrayList<>();
         for (UpdateInfo update : updates) {
                 newUpdates |= controller.addUpdate(update);
@@ -272,7 +313,7 @@ public class UpdatesActivity extends UpdatesListActivity {
             try {
                 loadUpdatesList(jsonFile, false);
                 Log.d(TAG, "Cached list parsed");
-            } catch (IOException | JSONException e) {
+            } catch (IOException e) {
                 Log.e(TAG, "Error while parsing json list", e);
             }
         } else {
@@ -280,7 +321,7 @@ public class UpdatesActivity extends UpdatesListActivity {
         }
     }
 
-    private void processNewJson(File json, File jsonNew, boolean manualRefresh) {
+    private boolean processNewJson(File json, File jsonNew, boolean manualRefresh) {
         try {
             loadUpdatesList(jsonNew, manualRefresh);
             SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
@@ -292,25 +333,52 @@ public class UpdatesActivity extends UpdatesListActivity {
             }
             // In case we set a one-shot check because of a previous failure
             UpdatesCheckReceiver.cancelUpdatesCheck(this);
-            jsonNew.renameTo(json);
-        } catch (IOException | JSONException e) {
+            return UpdatesListCache.rename(jsonNew, json);
+        } catch (IOException e) {
             Log.e(TAG, "Could not read json", e);
             showSnackbar(R.string.snack_updates_check_failed, Snackbar.LENGTH_LONG);
+            return false;
+        }
+    }
+
+    private void processUnchangedJson(boolean manualRefresh) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
+        long millis = System.currentTimeMillis();
+        preferences.edit().putLong(Constants.PREF_LAST_UPDATE_CHECK, millis).apply();
+        // In case we set a one-shot check because of a previous failure
+        UpdatesCheckReceiver.cancelUpdatesCheck(this);
+        if (manualRefresh) {
+            showSnackbar(R.string.snack_no_updates_found, Snackbar.LENGTH_SHORT);
         }
     }
 
     private void downloadUpdatesList(final boolean manualRefresh) {
         final File jsonFile = Utils.getCachedUpdateList(this);
         final File jsonFileTmp = new File(jsonFile.getAbsolutePath() + UUID.randomUUID());
-        String url = Utils.getServerURL(this);
+        final String url = Utils.getServerURL(this);
         Log.d(TAG, "Checking " + url);
 
+        final Metrics.Timer timer = Metrics.beginAsyncSection("updates_list.fetch_ms");
         DownloadClient.DownloadCallback callback = new DownloadClient.DownloadCallback() {
+            private boolean mNotModified;
+            private String mEtag;
+            private String mLastModified;
+
             @Override
             public void onFailure(final boolean cancelled) {
-                Log.e(TAG, "Could not download updates list");
+                if (mNotModified) {
+                    Log.d(TAG, "List not modified");
+                    timer.stop();
+                    Metrics.increment("updates_list.not_modified");
+                } else {
+                    Log.e(TAG, "Could not download updates list");
+                    timer.cancel();
+                    Metrics.increment("updates_list.fetch_failed");
+                }
                 runOnUiThread(() -> {
-                    if (!cancelled) {
+                    if (mNotModified) {
+                        processUnchangedJson(manualRefresh);
+                    } else if (!cancelled) {
                         showSnackbar(R.string.snack_updates_server_down, Snackbar.LENGTH_LONG);
                     }
 
@@ -324,13 +392,20 @@ public class UpdatesActivity extends UpdatesListActivity {
             @Override
             public void onResponse(int statusCode, String url,
                     DownloadClient.Headers headers) {
+                mNotModified = statusCode == HttpURLConnection.HTTP_NOT_MODIFIED;
+                mEtag = headers.get("ETag");
+                mLastModified = headers.get("Last-Modified");
             }
 
             @Override
             public void onSuccess(File destination) {
+                timer.stop();
                 runOnUiThread(() -> {
                     Log.d(TAG, "List downloaded");
-                    processNewJson(jsonFile, jsonFileTmp, manualRefresh);
+                    if (processNewJson(jsonFile, jsonFileTmp, manualRefresh)) {
+                        Utils.saveUpdatesListValidators(UpdatesActivity.this, url, mEtag,
+                                mLastModified);
+                    }
                     mRefreshIconButton.setEnabled(true);
                     mRefreshIconButton.setClickable(true);
                     mRefreshIconButton.setBackgroundTintList(getColorStateList(R.color.theme_accent));
@@ -341,13 +416,15 @@ public class UpdatesActivity extends UpdatesListActivity {
 
         final DownloadClient downloadClient;
         try {
-            downloadClient = new DownloadClient.Builder()
+            DownloadClient.Builder builder = new DownloadClient.Builder()
                     .setUrl(url)
                     .setDestination(jsonFileTmp)
-                    .setDownloadCallback(callback)
-                    .build();
+                    .setDownloadCallback(callback);
+            Utils.addUpdatesListValidators(this, url, builder);
+            downloadClient = builder.build();
         } catch (IOException exception) {
             Log.e(TAG, "Could not build download client");
+            timer.cancel();
             showSnackbar(R.string.snack_updates_download_client, Snackbar.LENGTH_LONG);
             return;
         }
@@ -359,8 +436,7 @@ public class UpdatesActivity extends UpdatesListActivity {
         downloadClient.start();
     }
 
-    private void handleDownloadStatusChange(String downloadId) {
-        UpdateInfo update = mUpdaterService.getUpdaterController().getUpdate(downloadId);
+    private void handleDownloadStatusChange(UpdateInfo update) {
         switch (update.getStatus()) {
             case PAUSED_ERROR:
                 showSnackbar(R.string.snack_download_failed, Snackbar.LENGTH_LONG);
@@ -394,9 +470,11 @@ public class UpdatesActivity extends UpdatesListActivity {
         Switch autoDelete = view.findViewById(R.id.preferences_auto_delete_updates);
         Switch dataWarning = view.findViewById(R.id.preferences_mobile_data_warning);
         Switch abPerfMode = view.findViewById(R.id.preferences_ab_perf_mode);
+        Switch abStreaming = view.findViewById(R.id.preferences_ab_streaming);
 
         if (!Utils.isABDevice()) {
             abPerfMode.setVisibility(View.GONE);
+            abStreaming.setVisibility(View.GONE);
         }
 
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
@@ -404,6 +482,7 @@ public class UpdatesActivity extends UpdatesListActivity {
         autoDelete.setChecked(prefs.getBoolean(Constants.PREF_AUTO_DELETE_UPDATES, false));
         dataWarning.setChecked(prefs.getBoolean(Constants.PREF_MOBILE_DATA_WARNING, true));
         abPerfMode.setChecked(prefs.getBoolean(Constants.PREF_AB_PERF_MODE, false));
+        abStreaming.setChecked(prefs.getBoolean(Constants.PREF_AB_STREAMING, false));
 
         new AlertDialog.Builder(this)
                 .setTitle(R.string.menu_preferences)
@@ -418,6 +497,8 @@ public class UpdatesActivity extends UpdatesListActivity {
                                     dataWarning.isChecked())
                             .putBoolean(Constants.PREF_AB_PERF_MODE,
                                     abPerfMode.isChecked())
+                            .putBoolean(Constants.PREF_AB_STREAMING,
+                                    abStreaming.isChecked())
                             .apply();
 
                     if (Utils.isUpdateCheckEnabled(this)) {
@@ -430,6 +511,8 @@ public class UpdatesActivity extends UpdatesListActivity {
                     if (Utils.isABDevice()) {
                         boolean enableABPerfMode = abPerfMode.isChecked();
                         mUpdaterService.getUpdaterController().setPerformanceMode(enableABPerfMode);
+                        // The updates that weren't downloaded have a different action
+                        mAdapter.notifyDataSetChanged();
                     }
                 })
                 .show();
@@ -437,6 +520,20 @@ public class UpdatesActivity extends UpdatesListActivity {
 
     public static void prepareMirrorsData (UpdateInfo updateInfo, UpdatesActivity mUpdatesActivity) {
 
+        if (Utils.getRankSortSetting(mUpdatesActivity)) {
+            // Show the previous ranking right away, refresh it for the next time
+            Map<String, String> cachedMirrors =
+                    UpdaterController.cachedArrowMirrors(mUpdatesActivity, updateInfo);
+            if (cachedMirrors != null) {
+                showMirrorsDialog(cachedMirrors, mUpdatesActivity, updateInfo);
+                if (mUpdatesActivity.mUpdaterService != null) {
+                    mUpdatesActivity.mUpdaterService.getUpdaterController()
+                            .refreshMirrorRankingIfStale(updateInfo);
+                }
+                return;
+            }
+        }
+
         new AsyncTask<UpdateInfo, Void, Map<String, String>>() {
             @Override
             protected void onPreExecute() {
@@ -455,7 +552,7 @@ public class UpdatesActivity extends UpdatesListActivity {
                 mirrors = new LinkedHashMap<>();
 
                 try {
-                    Thread mirrorsData = new Thread(() -> mirrors = UpdaterController.arrowMirrors(update[0], rankSort));
+                    Thread mirrorsData = new Thread(() -> mirrors = UpdaterController.arrowMirrors(mUpdatesActivity, update[0], rankSort));
                     mirrorsData.start();
                     mirrorsData.join();
                 } catch (InterruptedException e) {
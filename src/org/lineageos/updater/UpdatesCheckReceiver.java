@@ -29,13 +29,15 @@ import android.util.Log;
 
 import androidx.core.app.NotificationCompat;
 
-import org.json.JSONException;
 import org.lineageos.updater.download.DownloadClient;
 import org.lineageos.updater.misc.Constants;
+import org.lineageos.updater.misc.Metrics;
+import org.lineageos.updater.misc.UpdatesListCache;
 import org.lineageos.updater.misc.Utils;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.HttpURLConnection;
 import java.util.Date;
 import java.util.UUID;
 
@@ -75,34 +77,58 @@ public class UpdatesCheckReceiver extends BroadcastReceiver {
 
         final File json = Utils.getCachedUpdateList(context);
         final File jsonNew = new File(json.getAbsolutePath() + UUID.randomUUID());
-        String url = Utils.getServerURL(context);
+        final String url = Utils.getServerURL(context);
+        final Metrics.Timer timer = Metrics.beginAsyncSection("updates_list.fetch_ms");
         DownloadClient.DownloadCallback callback = new DownloadClient.DownloadCallback() {
+            private boolean mNotModified;
+            private String mEtag;
+            private String mLastModified;
+
             @Override
             public void onFailure(boolean cancelled) {
+                if (mNotModified) {
+                    Log.d(TAG, "List not modified");
+                    timer.stop();
+                    Metrics.increment("updates_list.not_modified");
+                    updateLastCheck();
+                    return;
+                }
                 Log.e(TAG, "Could not download updates list, scheduling new check");
+                timer.cancel();
+                Metrics.increment("updates_list.fetch_failed");
                 scheduleUpdatesCheck(context);
             }
 
             @Override
             public void onResponse(int statusCode, String url,
                     DownloadClient.Headers headers) {
+                mNotModified = statusCode == HttpURLConnection.HTTP_NOT_MODIFIED;
+                mEtag = headers.get("ETag");
+                mLastModified = headers.get("Last-Modified");
+            }
+
+            private void updateLastCheck() {
+                long currentMillis = System.currentTimeMillis();
+                preferences.edit()
+                        .putLong(Constants.PREF_LAST_UPDATE_CHECK, currentMillis)
+                        .apply();
+                // In case we set a one-shot check because of a previous failure
+                cancelUpdatesCheck(context);
             }
 
             @Override
             public void onSuccess(File destination) {
+                timer.stop();
                 try {
                     if (json.exists() && Utils.checkForNewUpdates(json, jsonNew)) {
                         showNotification(context);
                         updateRepeatingUpdatesCheck(context);
                     }
-                    jsonNew.renameTo(json);
-                    long currentMillis = System.currentTimeMillis();
-                    preferences.edit()
-                            .putLong(Constants.PREF_LAST_UPDATE_CHECK, currentMillis)
-                            .apply();
-                    // In case we set a one-shot check because of a previous failure
-                    cancelUpdatesCheck(context);
-                } catch (IOException | JSONException e) {
+                    if (UpdatesListCache.rename(jsonNew, json)) {
+                        Utils.saveUpdatesListValidators(context, url, mEtag, mLastModified);
+                    }
+                    updateLastCheck();
+                } catch (IOException e) {
                     Log.e(TAG, "Could not parse list, scheduling new check", e);
                     scheduleUpdatesCheck(context);
                 }
@@ -110,14 +136,15 @@ public class UpdatesCheckReceiver extends BroadcastReceiver {
         };
 
         try {
-            DownloadClient downloadClient = new DownloadClient.Builder()
+            DownloadClient.Builder builder = new DownloadClient.Builder()
                     .setUrl(url)
                     .setDestination(jsonNew)
-                    .setDownloadCallback(callback)
-                    .build();
-            downloadClient.start();
+                    .setDownloadCallback(callback);
+            Utils.addUpdatesListValidators(context, url, builder);
+            builder.build().start();
         } catch (IOException e) {
             Log.e(TAG, "Could not fetch list, scheduling new check", e);
+            timer.cancel();
             scheduleUpdatesCheck(context);
         }
     }
@@ -19,20 +19,38 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.provider.BaseColumns;
+import android.util.Log;
 
+import org.lineageos.updater.misc.Metrics;
+import org.lineageos.updater.misc.PackageMetadata;
 import org.lineageos.updater.model.Update;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * The only database of the app: the downloaded updates, the mirror chosen for each of
+ * them, the scores of the mirrors and the metadata of the downloaded packages.
+ */
 public class UpdatesDbHelper extends SQLiteOpenHelper {
 
-    public static final int DATABASE_VERSION = 1;
+    private static final String TAG = "UpdatesDbHelper";
+
+    // 1: updates
+    // 2: mirrors and mirror_scores, imported from mirrors.db
+    // 3: package_metadata
+    // 4: sha256 of updates
+    public static final int DATABASE_VERSION = 4;
     public static final String DATABASE_NAME = "updates.db";
 
+    // Used to be a separate database, imported when upgrading to version 2
+    private static final String LEGACY_MIRRORS_DATABASE_NAME = "mirrors.db";
+
     public static class UpdateEntry implements BaseColumns {
         public static final String TABLE_NAME = "updates";
         public static final String COLUMN_NAME_STATUS = "status";
@@ -42,6 +60,33 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
         public static final String COLUMN_NAME_TYPE = "type";
         public static final String COLUMN_NAME_VERSION = "version";
         public static final String COLUMN_NAME_SIZE = "size";
+        public static final String COLUMN_NAME_SHA256 = "sha256";
+    }
+
+    public static class MirrorsEntry implements BaseColumns {
+        public static final String TABLE_NAME = "mirrors";
+        public static final String COLUMN_NAME_DOWNLOAD_ID = "download_id";
+        public static final String COLUMN_NAME_MIRROR = "mirror_name";
+        public static final String COLUMN_NAME_MIRROR_URL = "mirror_url";
+    }
+
+    public static class MirrorScoresEntry implements BaseColumns {
+        public static final String TABLE_NAME = "mirror_scores";
+        public static final String COLUMN_NAME_MIRROR = "mirror_name";
+        public static final String COLUMN_NAME_SCORE = "score";
+        public static final String COLUMN_NAME_TIMESTAMP = "timestamp";
+    }
+
+    public static class PackageMetadataEntry implements BaseColumns {
+        public static final String TABLE_NAME = "package_metadata";
+        public static final String COLUMN_NAME_PATH = "path";
+        public static final String COLUMN_NAME_SIZE = "size";
+        public static final String COLUMN_NAME_LAST_MODIFIED = "last_modified";
+        public static final String COLUMN_NAME_SHA256 = "sha256";
+        public static final String COLUMN_NAME_AB_UPDATE = "ab_update";
+        public static final String COLUMN_NAME_PAYLOAD_OFFSET = "payload_offset";
+        public static final String COLUMN_NAME_PAYLOAD_SIZE = "payload_size";
+        public static final String COLUMN_NAME_PAYLOAD_PROPERTIES = "payload_properties";
     }
 
     private static final String SQL_CREATE_ENTRIES =
@@ -53,26 +98,208 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
                     UpdateEntry.COLUMN_NAME_TIMESTAMP + " INTEGER," +
                     UpdateEntry.COLUMN_NAME_TYPE + " TEXT," +
                     UpdateEntry.COLUMN_NAME_VERSION + " TEXT," +
-                    UpdateEntry.COLUMN_NAME_SIZE + " INTEGER)";
+                    UpdateEntry.COLUMN_NAME_SIZE + " INTEGER," +
+                    UpdateEntry.COLUMN_NAME_SHA256 + " TEXT)";
+
+    private static final String SQL_CREATE_MIRRORS =
+            "CREATE TABLE " + MirrorsEntry.TABLE_NAME + " (" +
+                    MirrorsEntry._ID + " INTEGER PRIMARY KEY," +
+                    MirrorsEntry.COLUMN_NAME_DOWNLOAD_ID + " TEXT NOT NULL UNIQUE," +
+                    MirrorsEntry.COLUMN_NAME_MIRROR + " TEXT," +
+                    MirrorsEntry.COLUMN_NAME_MIRROR_URL + " TEXT)";
+
+    private static final String SQL_CREATE_SCORES =
+            "CREATE TABLE " + MirrorScoresEntry.TABLE_NAME + " (" +
+                    MirrorScoresEntry._ID + " INTEGER PRIMARY KEY," +
+                    MirrorScoresEntry.COLUMN_NAME_MIRROR + " TEXT NOT NULL UNIQUE," +
+                    MirrorScoresEntry.COLUMN_NAME_SCORE + " REAL NOT NULL," +
+                    MirrorScoresEntry.COLUMN_NAME_TIMESTAMP + " INTEGER NOT NULL)";
+
+    private static final String SQL_CREATE_PACKAGE_METADATA =
+            "CREATE TABLE " + PackageMetadataEntry.TABLE_NAME + " (" +
+                    PackageMetadataEntry._ID + " INTEGER PRIMARY KEY," +
+                    PackageMetadataEntry.COLUMN_NAME_PATH + " TEXT NOT NULL UNIQUE," +
+                    PackageMetadataEntry.COLUMN_NAME_SIZE + " INTEGER NOT NULL," +
+                    PackageMetadataEntry.COLUMN_NAME_LAST_MODIFIED + " INTEGER NOT NULL," +
+                    PackageMetadataEntry.COLUMN_NAME_SHA256 + " TEXT," +
+                    PackageMetadataEntry.COLUMN_NAME_AB_UPDATE + " INTEGER NOT NULL," +
+                    PackageMetadataEntry.COLUMN_NAME_PAYLOAD_OFFSET + " INTEGER NOT NULL," +
+                    PackageMetadataEntry.COLUMN_NAME_PAYLOAD_SIZE + " INTEGER NOT NULL," +
+                    PackageMetadataEntry.COLUMN_NAME_PAYLOAD_PROPERTIES + " TEXT NOT NULL)";
+
+    private static final String[] TABLES = {
+            UpdateEntry.TABLE_NAME,
+            MirrorsEntry.TABLE_NAME,
+            MirrorScoresEntry.TABLE_NAME,
+            PackageMetadataEntry.TABLE_NAME,
+    };
+
+    // The chosen mirror of each update, if any
+    private static final String UPDATES_WITH_MIRRORS =
+            UpdateEntry.TABLE_NAME + " LEFT JOIN " + MirrorsEntry.TABLE_NAME + " ON " +
+                    UpdateEntry.TABLE_NAME + "." + UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + " = " +
+                    MirrorsEntry.TABLE_NAME + "." + MirrorsEntry.COLUMN_NAME_DOWNLOAD_ID;
+
+    private static final String SQL_UPSERT_ENTRY =
+            "INSERT OR REPLACE INTO " + UpdateEntry.TABLE_NAME + " (" +
+                    UpdateEntry.COLUMN_NAME_STATUS + "," +
+                    UpdateEntry.COLUMN_NAME_PATH + "," +
+                    UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + "," +
+                    UpdateEntry.COLUMN_NAME_TIMESTAMP + "," +
+                    UpdateEntry.COLUMN_NAME_TYPE + "," +
+                    UpdateEntry.COLUMN_NAME_VERSION + "," +
+                    UpdateEntry.COLUMN_NAME_SIZE + "," +
+                    UpdateEntry.COLUMN_NAME_SHA256 + ") VALUES (?,?,?,?,?,?,?,?)";
+
+    private static final String SQL_UPDATE_STATUS =
+            "UPDATE " + UpdateEntry.TABLE_NAME + " SET " +
+                    UpdateEntry.COLUMN_NAME_STATUS + " = ? WHERE " +
+                    UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
+
+    private static final String SQL_DELETE_ENTRY =
+            "DELETE FROM " + UpdateEntry.TABLE_NAME + " WHERE " +
+                    UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
 
-    private static final String SQL_DELETE_ENTRIES =
-            "DROP TABLE IF EXISTS " + UpdateEntry.TABLE_NAME;
+    private static UpdatesDbHelper sInstance;
 
-    public UpdatesDbHelper(Context context) {
+    private final Context mContext;
+
+    // Compiled once, used while holding the lock of the helper
+    private SQLiteStatement mUpsertStatement;
+    private SQLiteStatement mUpdateStatusStatement;
+    private SQLiteStatement mDeleteStatement;
+
+    public static synchronized UpdatesDbHelper getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new UpdatesDbHelper(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private UpdatesDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mContext = context;
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        // With WAL, only checkpoints need to be synced
+        db.execSQL("PRAGMA synchronous = NORMAL");
+    }
+
+    @Override
+    public synchronized void close() {
+        for (SQLiteStatement statement : new SQLiteStatement[] {
+                mUpsertStatement, mUpdateStatusStatement, mDeleteStatement}) {
+            if (statement != null) {
+                statement.close();
+            }
+        }
+        mUpsertStatement = null;
+        mUpdateStatusStatement = null;
+        mDeleteStatement = null;
+        super.close();
     }
 
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(SQL_CREATE_ENTRIES);
+        db.execSQL(SQL_CREATE_MIRRORS);
+        db.execSQL(SQL_CREATE_SCORES);
+        db.execSQL(SQL_CREATE_PACKAGE_METADATA);
+        importLegacyMirrors(db);
     }
 
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL(SQL_DELETE_ENTRIES);
-        onCreate(db);
+        // Each step brings the schema to the next version, keeping the data
+        if (oldVersion < 2) {
+            db.execSQL(SQL_CREATE_MIRRORS);
+            db.execSQL(SQL_CREATE_SCORES);
+            importLegacyMirrors(db);
+        }
+        if (oldVersion < 3) {
+            db.execSQL(SQL_CREATE_PACKAGE_METADATA);
+        }
+        if (oldVersion < 4) {
+            db.execSQL("ALTER TABLE " + UpdateEntry.TABLE_NAME + " ADD COLUMN " +
+                    UpdateEntry.COLUMN_NAME_SHA256 + " TEXT");
+        }
     }
 
     public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        onUpgrade(db, oldVersion, newVersion);
+        // The newer schema is unknown, start over
+        for (String table : TABLES) {
+            db.execSQL("DROP TABLE IF EXISTS " + table);
+        }
+        onCreate(db);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        // Only once the import was committed
+        File legacy = mContext.getDatabasePath(LEGACY_MIRRORS_DATABASE_NAME);
+        if (legacy.exists()) {
+            mContext.deleteDatabase(LEGACY_MIRRORS_DATABASE_NAME);
+        }
+    }
+
+    /**
+     * Copy the content of the mirrors database, if any.
+     */
+    private void importLegacyMirrors(SQLiteDatabase db) {
+        File legacy = mContext.getDatabasePath(LEGACY_MIRRORS_DATABASE_NAME);
+        if (!legacy.exists()) {
+            return;
+        }
+        try (SQLiteDatabase legacyDb = SQLiteDatabase.openDatabase(legacy.getPath(), null,
+                SQLiteDatabase.OPEN_READONLY)) {
+            copyTable(legacyDb, db, MirrorsEntry.TABLE_NAME, new String[] {
+                    MirrorsEntry.COLUMN_NAME_DOWNLOAD_ID,
+                    MirrorsEntry.COLUMN_NAME_MIRROR,
+                    MirrorsEntry.COLUMN_NAME_MIRROR_URL,
+            });
+            copyTable(legacyDb, db, MirrorScoresEntry.TABLE_NAME, new String[] {
+                    MirrorScoresEntry.COLUMN_NAME_MIRROR,
+                    MirrorScoresEntry.COLUMN_NAME_SCORE,
+                    MirrorScoresEntry.COLUMN_NAME_TIMESTAMP,
+            });
+            Log.d(TAG, "Imported " + legacy);
+        } catch (SQLiteException e) {
+            // Only the mirror choices are lost
+            Log.e(TAG, "Could not import " + legacy, e);
+        }
+    }
+
+    private static void copyTable(SQLiteDatabase from, SQLiteDatabase to, String table,
+            String[] columns) {
+        try (Cursor exists = from.rawQuery("SELECT 1 FROM sqlite_master " +
+                "WHERE type = 'table' AND name = ?", new String[] {table})) {
+            if (!exists.moveToFirst()) {
+                // Older versions of the mirrors database didn't have every table
+                return;
+            }
+        }
+        try (Cursor cursor = from.query(table, columns, null, null, null, null, null)) {
+            while (cursor.moveToNext()) {
+                ContentValues values = new ContentValues();
+                for (int i = 0; i < columns.length; i++) {
+                    switch (cursor.getType(i)) {
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            values.put(columns[i], cursor.getLong(i));
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            values.put(columns[i], cursor.getDouble(i));
+                            break;
+                        case Cursor.FIELD_TYPE_NULL:
+                            values.putNull(columns[i]);
+                            break;
+                        default:
+                            values.put(columns[i], cursor.getString(i));
+                    }
+                }
+                to.insertWithOnConflict(table, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+            }
+        }
     }
 
     public long addUpdate(Update update) {
@@ -89,6 +316,37 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
         return db.insertWithOnConflict(UpdateEntry.TABLE_NAME, null, values, conflictAlgorithm);
     }
 
+    /**
+     * Insert the update, replacing the entry with the same download id if any.
+     */
+    public synchronized long upsertUpdate(Update update) {
+        if (mUpsertStatement == null) {
+            mUpsertStatement = getWritableDatabase().compileStatement(SQL_UPSERT_ENTRY);
+        }
+        SQLiteStatement statement = mUpsertStatement;
+        statement.bindLong(1, update.getPersistentStatus());
+        statement.bindString(2, update.getFile().getAbsolutePath());
+        statement.bindString(3, update.getDownloadId());
+        statement.bindLong(4, update.getTimestamp());
+        bindStringOrNull(statement, 5, update.getType());
+        bindStringOrNull(statement, 6, update.getVersion());
+        statement.bindLong(7, update.getFileSize());
+        bindStringOrNull(statement, 8, update.getSha256());
+        try {
+            return statement.executeInsert();
+        } finally {
+            statement.clearBindings();
+        }
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value != null) {
+            statement.bindString(index, value);
+        } else {
+            statement.bindNull(index);
+        }
+    }
+
     private static void fillContentValues(Update update, ContentValues values) {
         values.put(UpdateEntry.COLUMN_NAME_STATUS, update.getPersistentStatus());
         values.put(UpdateEntry.COLUMN_NAME_PATH, update.getFile().getAbsolutePath());
@@ -97,13 +355,19 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
         values.put(UpdateEntry.COLUMN_NAME_TYPE, update.getType());
         values.put(UpdateEntry.COLUMN_NAME_VERSION, update.getVersion());
         values.put(UpdateEntry.COLUMN_NAME_SIZE, update.getFileSize());
+        values.put(UpdateEntry.COLUMN_NAME_SHA256, update.getSha256());
     }
 
-    public boolean removeUpdate(String downloadId) {
-        SQLiteDatabase db = getWritableDatabase();
-        String selection = UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
-        String[] selectionArgs = {downloadId};
-        return db.delete(UpdateEntry.TABLE_NAME, selection, selectionArgs) != 0;
+    public synchronized boolean removeUpdate(String downloadId) {
+        if (mDeleteStatement == null) {
+            mDeleteStatement = getWritableDatabase().compileStatement(SQL_DELETE_ENTRY);
+        }
+        mDeleteStatement.bindString(1, downloadId);
+        try {
+            return mDeleteStatement.executeUpdateDelete() != 0;
+        } finally {
+            mDeleteStatement.clearBindings();
+        }
     }
 
     public boolean removeUpdate(long rowId) {
@@ -112,10 +376,17 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
         return db.delete(UpdateEntry.TABLE_NAME, selection, null) != 0;
     }
 
-    public boolean changeUpdateStatus(Update update) {
-        String selection = UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
-        String[] selectionArgs = {update.getDownloadId()};
-        return changeUpdateStatus(selection, selectionArgs, update.getPersistentStatus());
+    public synchronized boolean changeUpdateStatus(Update update) {
+        if (mUpdateStatusStatement == null) {
+            mUpdateStatusStatement = getWritableDatabase().compileStatement(SQL_UPDATE_STATUS);
+        }
+        mUpdateStatusStatement.bindLong(1, update.getPersistentStatus());
+        mUpdateStatusStatement.bindString(2, update.getDownloadId());
+        try {
+            return mUpdateStatusStatement.executeUpdateDelete() != 0;
+        } finally {
+            mUpdateStatusStatement.clearBindings();
+        }
     }
 
     public boolean changeUpdateStatus(long rowId, int status) {
@@ -132,12 +403,13 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
     }
 
     public Update getUpdate(long rowId) {
-        String selection = UpdateEntry._ID + " = " + rowId;
+        String selection = UpdateEntry.TABLE_NAME + "." + UpdateEntry._ID + " = " + rowId;
         return getUpdate(selection, null);
     }
 
     public Update getUpdate(String downloadId) {
-        String selection = UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
+        String selection = UpdateEntry.TABLE_NAME + "." +
+                UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
         String[] selectionArgs = {downloadId};
         return getUpdate(selection, selectionArgs);
     }
@@ -148,22 +420,36 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
     }
 
     public List<Update> getUpdates() {
-        return getUpdates(null, null);
+        Metrics.Timer timer = Metrics.beginSection("db.load_updates_ms");
+        try {
+            return getUpdates(null, null);
+        } finally {
+            timer.stop();
+        }
     }
 
+    /**
+     * Get the stored updates, along with the URL of the mirror chosen for them.
+     *
+     * @param selection filter on the updates table joined with the mirrors table,
+     *                  column names present in both must be qualified
+     */
     public List<Update> getUpdates(String selection, String[] selectionArgs) {
         SQLiteDatabase db = getReadableDatabase();
         String[] projection = {
                 UpdateEntry.COLUMN_NAME_PATH,
-                UpdateEntry.COLUMN_NAME_DOWNLOAD_ID,
+                UpdateEntry.TABLE_NAME + "." + UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + " AS " +
+                        UpdateEntry.COLUMN_NAME_DOWNLOAD_ID,
                 UpdateEntry.COLUMN_NAME_TIMESTAMP,
                 UpdateEntry.COLUMN_NAME_TYPE,
                 UpdateEntry.COLUMN_NAME_VERSION,
                 UpdateEntry.COLUMN_NAME_STATUS,
                 UpdateEntry.COLUMN_NAME_SIZE,
+                UpdateEntry.COLUMN_NAME_SHA256,
+                MirrorsEntry.COLUMN_NAME_MIRROR_URL,
         };
         String sort = UpdateEntry.COLUMN_NAME_TIMESTAMP + " DESC";
-        Cursor cursor = db.query(UpdateEntry.TABLE_NAME, projection, selection, selectionArgs,
+        Cursor cursor = db.query(UPDATES_WITH_MIRRORS, projection, selection, selectionArgs,
                 null, null, sort);
         List<Update> updates = new ArrayList<>();
         if (cursor != null) {
@@ -184,10 +470,67 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
                 update.setPersistentStatus(cursor.getInt(index));
                 index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_SIZE);
                 update.setFileSize(cursor.getLong(index));
+                index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_SHA256);
+                update.setSha256(cursor.getString(index));
+                index = cursor.getColumnIndex(MirrorsEntry.COLUMN_NAME_MIRROR_URL);
+                if (!cursor.isNull(index)) {
+                    update.setDownloadUrl(cursor.getString(index));
+                }
                 updates.add(update);
             }
             cursor.close();
         }
         return updates;
     }
+
+    public PackageMetadata getPackageMetadata(String path) {
+        SQLiteDatabase db = getReadableDatabase();
+        String[] projection = {
+                PackageMetadataEntry.COLUMN_NAME_SIZE,
+                PackageMetadataEntry.COLUMN_NAME_LAST_MODIFIED,
+                PackageMetadataEntry.COLUMN_NAME_SHA256,
+                PackageMetadataEntry.COLUMN_NAME_AB_UPDATE,
+                PackageMetadataEntry.COLUMN_NAME_PAYLOAD_OFFSET,
+                PackageMetadataEntry.COLUMN_NAME_PAYLOAD_SIZE,
+                PackageMetadataEntry.COLUMN_NAME_PAYLOAD_PROPERTIES,
+        };
+        String selection = PackageMetadataEntry.COLUMN_NAME_PATH + " = ?";
+        try (Cursor cursor = db.query(PackageMetadataEntry.TABLE_NAME, projection, selection,
+                new String[] {path}, null, null, null)) {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            String properties = cursor.getString(6);
+            return new PackageMetadata(path, cursor.getLong(0), cursor.getLong(1),
+                    cursor.isNull(2) ? null : cursor.getString(2), cursor.getInt(3) != 0,
+                    cursor.getLong(4), cursor.getLong(5),
+                    properties.isEmpty() ? new String[0] : properties.split("\n"));
+        }
+    }
+
+    /**
+     * Store the metadata, replacing the one of the same file if any.
+     */
+    public void upsertPackageMetadata(PackageMetadata metadata) {
+        SQLiteDatabase db = getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(PackageMetadataEntry.COLUMN_NAME_PATH, metadata.getPath());
+        values.put(PackageMetadataEntry.COLUMN_NAME_SIZE, metadata.getSize());
+        values.put(PackageMetadataEntry.COLUMN_NAME_LAST_MODIFIED, metadata.getLastModified());
+        values.put(PackageMetadataEntry.COLUMN_NAME_SHA256, metadata.getSha256());
+        values.put(PackageMetadataEntry.COLUMN_NAME_AB_UPDATE, metadata.isABUpdate() ? 1 : 0);
+        values.put(PackageMetadataEntry.COLUMN_NAME_PAYLOAD_OFFSET, metadata.getPayloadOffset());
+        values.put(PackageMetadataEntry.COLUMN_NAME_PAYLOAD_SIZE, metadata.getPayloadSize());
+        // The lines can't contain line breaks
+        values.put(PackageMetadataEntry.COLUMN_NAME_PAYLOAD_PROPERTIES,
+                String.join("\n", metadata.getPayloadProperties()));
+        db.insertWithOnConflict(PackageMetadataEntry.TABLE_NAME, null, values,
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    public boolean removePackageMetadata(String path) {
+        SQLiteDatabase db = getWritableDatabase();
+        String selection = PackageMetadataEntry.COLUMN_NAME_PATH + " = ?";
+        return db.delete(PackageMetadataEntry.TABLE_NAME, selection, new String[] {path}) != 0;
+    }
 }
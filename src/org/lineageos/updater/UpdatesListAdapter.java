@@ -62,7 +62,10 @@ import java.io.File;
 import java.io.IOException;
 import java.text.DateFormat;
 import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.ViewHolder> {
 
@@ -77,6 +80,8 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
     private List<String> mDownloadIds;
     private String mSelectedDownload;
     private UpdaterController mUpdaterController;
+    // Parsed from the cached list, shown until the controller is set
+    private Map<String, UpdateInfo> mPreview;
     private UpdatesListActivity mActivity;
     private UpdatesActivity mUpdatesActivity;
 
@@ -150,6 +155,50 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
         notifyDataSetChanged();
     }
 
+    /**
+     * Show the given updates until the controller is set. Only their details are
+     * shown, the actions are disabled.
+     */
+    public void setPreview(List<UpdateInfo> updates) {
+        Map<String, UpdateInfo> preview = new HashMap<>();
+        List<String> downloadIds = new ArrayList<>();
+        for (UpdateInfo update : updates) {
+            preview.put(update.getDownloadId(), update);
+            downloadIds.add(update.getDownloadId());
+        }
+        mPreview = preview;
+        mDownloadIds = downloadIds;
+        notifyDataSetChanged();
+    }
+
+    private void bindPreview(ViewHolder viewHolder, UpdateInfo update) {
+        if (update == null) {
+            viewHolder.mAction.setEnabled(false);
+            return;
+        }
+        bindDetails(viewHolder, update);
+        setButtonAction(viewHolder.mAction, Action.DOWNLOAD, update.getDownloadId(), false);
+        viewHolder.mBuildSize.setText(
+                Formatter.formatShortFileSize(mActivity, update.getFileSize()));
+        viewHolder.mProgressBar.setVisibility(View.INVISIBLE);
+        viewHolder.mProgressText.setVisibility(View.INVISIBLE);
+        viewHolder.mBuildSize.setVisibility(View.VISIBLE);
+    }
+
+    private void bindDetails(ViewHolder viewHolder, UpdateInfo update) {
+        String buildDate = StringGenerator.getDateLocalizedUTC(mActivity,
+                DateFormat.LONG, update.getTimestamp());
+        String buildVersion = mActivity.getString(R.string.list_build_version,
+                update.getVersion());
+        // Known once the controller is ready, the list is bound again then
+        String downloadMirror = MirrorsDbHelper.getInstance(mUpdatesActivity)
+                .peekMirrorName(update.getDownloadId());
+        viewHolder.mBuildDate.setText(buildDate);
+        viewHolder.mBuildVersion.setText(buildVersion + " | " + SystemProperties.get(Constants.PROP_ZIP_TYPE));
+        viewHolder.mDownloadMirror.setText(downloadMirror);
+        viewHolder.mBuildVersion.setCompoundDrawables(null, null, null, null);
+    }
+
     private void handleActiveStatus(ViewHolder viewHolder, UpdateInfo update) {
         boolean canDelete = false;
 
@@ -187,9 +236,14 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
             setButtonAction(viewHolder.mAction, Action.INSTALL, downloadId, false);
             viewHolder.mProgressText.setText(R.string.list_verifying_update);
             viewHolder.mProgressBar.setIndeterminate(true);
+        } else if (mUpdaterController.isQueued(downloadId)) {
+            setButtonAction(viewHolder.mAction, Action.PAUSE, downloadId, true);
+            viewHolder.mProgressText.setText(R.string.list_download_queued);
+            viewHolder.mProgressBar.setIndeterminate(false);
+            viewHolder.mProgressBar.setProgress(update.getProgress());
         } else {
             canDelete = true;
-            setButtonAction(viewHolder.mAction, Action.RESUME, downloadId, !isBusy());
+            setButtonAction(viewHolder.mAction, Action.RESUME, downloadId, !isBusy(false));
             String downloaded = StringGenerator.bytesToMegabytes(mActivity,
                     update.getFile().length());
             String total = Formatter.formatShortFileSize(mActivity, update.getFileSize());
@@ -224,10 +278,14 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
             viewHolder.itemView.setOnLongClickListener(
                     getLongClickListener(update, false, viewHolder.mBuildDate));
             setButtonAction(viewHolder.mAction, Action.INFO, downloadId, !isBusy());
+        } else if (Utils.canStreamUpdate(mActivity, update)) {
+            viewHolder.itemView.setOnLongClickListener(
+                    getLongClickListener(update, false, viewHolder.mBuildDate));
+            setButtonAction(viewHolder.mAction, Action.INSTALL, downloadId, !isBusy());
         } else {
             viewHolder.itemView.setOnLongClickListener(
                     getLongClickListener(update, false, viewHolder.mBuildDate));
-            setButtonAction(viewHolder.mAction, Action.DOWNLOAD, downloadId, !isBusy());
+            setButtonAction(viewHolder.mAction, Action.DOWNLOAD, downloadId, !isBusy(false));
         }
         String fileSize = Formatter.formatShortFileSize(mActivity, update.getFileSize());
         viewHolder.mBuildSize.setText(fileSize);
@@ -245,6 +303,10 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
         }
 
         final String downloadId = mDownloadIds.get(i);
+        if (mUpdaterController == null) {
+            bindPreview(viewHolder, mPreview != null ? mPreview.get(downloadId) : null);
+            return;
+        }
         UpdateInfo update = mUpdaterController.getUpdate(downloadId);
         if (update == null) {
             // The update was deleted
@@ -258,7 +320,10 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
         boolean activeLayout;
         switch (update.getPersistentStatus()) {
             case UpdateStatus.Persistent.UNKNOWN:
-                activeLayout = update.getStatus() == UpdateStatus.STARTING;
+                // Updates streamed from the mirror are installed without being stored
+                activeLayout = update.getStatus() == UpdateStatus.STARTING ||
+                        update.getStatus() == UpdateStatus.QUEUED ||
+                        update.getStatus() == UpdateStatus.INSTALLING;
                 break;
             case UpdateStatus.Persistent.VERIFIED:
                 activeLayout = update.getStatus() == UpdateStatus.INSTALLING;
@@ -270,15 +335,7 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
                 throw new RuntimeException("Unknown update status");
         }
 
-        String buildDate = StringGenerator.getDateLocalizedUTC(mActivity,
-                DateFormat.LONG, update.getTimestamp());
-        String buildVersion = mActivity.getString(R.string.list_build_version,
-                update.getVersion());
-        String downloadMirror = MirrorsDbHelper.getInstance(mUpdatesActivity).getMirrorName(update.getDownloadId());
-        viewHolder.mBuildDate.setText(buildDate);
-        viewHolder.mBuildVersion.setText(buildVersion + " | " + SystemProperties.get(Constants.PROP_ZIP_TYPE));
-        viewHolder.mDownloadMirror.setText(downloadMirror);
-        viewHolder.mBuildVersion.setCompoundDrawables(null, null, null, null);
+        bindDetails(viewHolder, update);
 
         if (activeLayout) {
             handleActiveStatus(viewHolder, update);
@@ -294,6 +351,7 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
 
     public void setData(List<String> downloadIds) {
         mDownloadIds = downloadIds;
+        mPreview = null;
     }
 
     public void notifyItemChanged(String downloadId) {
@@ -320,7 +378,7 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
                 Uri.parse(Utils.getChangelogURL(mActivity)));
 
         if (Utils.isOnWifiOrEthernet(mActivity) || !warn) {
-            mUpdaterController.startDownload(downloadId);
+            mUpdaterController.enqueueDownload(downloadId);
             mActivity.startActivity(openArrowChangelog);
             return;
         }
@@ -341,7 +399,7 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
                                         .apply();
                                 mActivity.supportInvalidateOptionsMenu();
                             }
-                            mUpdaterController.startDownload(downloadId);
+                            mUpdaterController.enqueueDownload(downloadId);
                             mActivity.startActivity(openArrowChangelog);
                         })
                 .setNegativeButton(android.R.string.cancel, null)
@@ -371,7 +429,7 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
                         update.getFile().length() == update.getFileSize();
                 clickListener = enabled ? view -> {
                     if (canInstall) {
-                        mUpdaterController.resumeDownload(downloadId);
+                        mUpdaterController.enqueueDownload(downloadId);
                     } else {
                         mActivity.showSnackbar(R.string.snack_update_not_installable,
                                 Snackbar.LENGTH_LONG);
@@ -436,7 +494,16 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
     }
 
     private boolean isBusy() {
-        return mUpdaterController.hasActiveDownloads() || mUpdaterController.isVerifyingUpdate()
+        return isBusy(true);
+    }
+
+    /**
+     * @param includeDownloads whether running downloads count, new downloads are
+     *                         queued behind them
+     */
+    private boolean isBusy(boolean includeDownloads) {
+        return (includeDownloads && mUpdaterController.hasActiveDownloads())
+                || mUpdaterController.isVerifyingUpdate()
                 || mUpdaterController.isInstallingUpdate();
     }
 
@@ -474,7 +541,9 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
         UpdateInfo update = mUpdaterController.getUpdate(downloadId);
         int resId;
         try {
-            if (Utils.isABUpdate(update.getFile())) {
+            if (Utils.canStreamUpdate(mActivity, update)) {
+                resId = R.string.apply_update_dialog_message_ab_streaming;
+            } else if (Utils.isABUpdate(mActivity, update.getFile())) {
                 resId = R.string.apply_update_dialog_message_ab;
             } else {
                 resId = R.string.apply_update_dialog_message;
@@ -18,26 +18,20 @@ package org.lineageos.updater.controller;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.UpdateEngine;
-import android.os.UpdateEngineCallback;
 import android.text.TextUtils;
 import android.util.Log;
 
 import androidx.preference.PreferenceManager;
 
+import org.lineageos.updater.download.RemoteZip;
 import org.lineageos.updater.misc.Constants;
-import org.lineageos.updater.misc.Utils;
+import org.lineageos.updater.misc.Metrics;
+import org.lineageos.updater.misc.PackageMetadata;
 import org.lineageos.updater.model.Update;
 import org.lineageos.updater.model.UpdateStatus;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 class ABUpdateInstaller {
 
@@ -52,13 +46,24 @@ class ABUpdateInstaller {
     private final Context mContext;
     private String mDownloadId;
 
-    private UpdateEngine mUpdateEngine;
+    private final UpdateEngineProxy mUpdateEngine;
     private boolean mBound;
 
     private boolean mFinalizing;
     private int mProgress;
 
-    private final UpdateEngineCallback mUpdateEngineCallback = new UpdateEngineCallback() {
+    // Fetches the metadata of a streamed update, update_engine isn't involved yet.
+    // Guarded by this
+    private Thread mPrepareThread;
+
+    // Only the phases of installations started by this process are timed
+    private final Object mPhaseLock = new Object();
+    private boolean mTimePhases;
+    private int mPhase = -1;
+    private Metrics.Timer mPhaseTimer;
+
+    private final UpdateEngineProxy.Callback mUpdateEngineCallback =
+            new UpdateEngineProxy.Callback() {
 
         @Override
         public void onStatusUpdate(int status, float percent) {
@@ -69,6 +74,7 @@ class ABUpdateInstaller {
                 return;
             }
 
+            onPhaseChanged(status);
             switch (status) {
                 case UpdateEngine.UpdateStatusConstants.DOWNLOADING:
                 case UpdateEngine.UpdateStatusConstants.FINALIZING: {
@@ -96,7 +102,11 @@ class ABUpdateInstaller {
                 case UpdateEngine.UpdateStatusConstants.IDLE: {
                     // The service was restarted because we thought we were installing an
                     // update, but we aren't, so clear everything.
-                    installationDone(false);
+                    synchronized (ABUpdateInstaller.this) {
+                        if (mPrepareThread == null) {
+                            installationDone(false);
+                        }
+                    }
                 }
                 break;
             }
@@ -104,7 +114,9 @@ class ABUpdateInstaller {
 
         @Override
         public void onPayloadApplicationComplete(int errorCode) {
+            stopPhaseTimer(errorCode == UpdateEngine.ErrorCodeConstants.SUCCESS);
             if (errorCode != UpdateEngine.ErrorCodeConstants.SUCCESS) {
+                Metrics.increment("install.ab.failed");
                 installationDone(false);
                 Update update = mUpdaterController.getActualUpdate(mDownloadId);
                 update.setInstallProgress(0);
@@ -142,16 +154,21 @@ class ABUpdateInstaller {
         return TextUtils.equals(waitingId, downloadId);
     }
 
-    private ABUpdateInstaller(Context context, UpdaterController updaterController) {
+    /**
+     * @param updateEngine where the calls to update_engine go, can be a fake
+     */
+    ABUpdateInstaller(Context context, UpdaterController updaterController,
+            UpdateEngineProxy updateEngine) {
         mUpdaterController = updaterController;
         mContext = context.getApplicationContext();
-        mUpdateEngine = new UpdateEngine();
+        mUpdateEngine = updateEngine;
     }
 
     static synchronized ABUpdateInstaller getInstance(Context context,
             UpdaterController updaterController) {
         if (sInstance == null) {
-            sInstance = new ABUpdateInstaller(context, updaterController);
+            sInstance = new ABUpdateInstaller(context, updaterController,
+                    UpdateEngineProxy.create());
         }
         return sInstance;
     }
@@ -173,38 +190,122 @@ class ABUpdateInstaller {
             return false;
         }
 
-        long offset;
-        String[] headerKeyValuePairs;
+        PackageMetadata metadata;
+        Metrics.Timer timer = Metrics.beginSection("install.ab.prepare_ms");
         try {
-            ZipFile zipFile = new ZipFile(file);
-            offset = Utils.getZipEntryOffset(zipFile, Constants.AB_PAYLOAD_BIN_PATH);
-            ZipEntry payloadPropEntry = zipFile.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH);
-            try (InputStream is = zipFile.getInputStream(payloadPropEntry);
-                 InputStreamReader isr = new InputStreamReader(is);
-                 BufferedReader br = new BufferedReader(isr)) {
-                List<String> lines = new ArrayList<>();
-                for (String line; (line = br.readLine()) != null;) {
-                    lines.add(line);
-                }
-                headerKeyValuePairs = new String[lines.size()];
-                headerKeyValuePairs = lines.toArray(headerKeyValuePairs);
-            }
-            zipFile.close();
-        } catch (IOException | IllegalArgumentException e) {
+            metadata = PackageMetadata.get(mContext, file);
+            checkPayload(metadata);
+        } catch (IOException e) {
             Log.e(TAG, "Could not prepare " + file, e);
             mUpdaterController.getActualUpdate(mDownloadId)
                     .setStatus(UpdateStatus.INSTALLATION_FAILED);
             mUpdaterController.notifyUpdateChange(mDownloadId);
             return false;
+        } finally {
+            timer.stop();
+        }
+
+        String zipFileUri = "file://" + file.getAbsolutePath();
+        return applyPayload(zipFileUri, metadata.getPayloadOffset(), metadata.getPayloadSize(),
+                metadata.getPayloadProperties());
+    }
+
+    /**
+     * Install the update straight from its mirror. Only the metadata of the zip is
+     * fetched here, update_engine downloads the payload while applying it.
+     */
+    public synchronized boolean installStreaming(String downloadId) {
+        if (isInstallingUpdate(mContext)) {
+            Log.e(TAG, "Already installing an update");
+            return false;
+        }
+
+        mDownloadId = downloadId;
+        String url = mUpdaterController.getActualUpdate(downloadId).getDownloadUrl();
+
+        // Fetching the metadata takes a while, show that the installation started
+        PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                .putString(PREF_INSTALLING_AB_ID, downloadId)
+                .apply();
+        mUpdaterController.getActualUpdate(downloadId).setStatus(UpdateStatus.INSTALLING);
+        mUpdaterController.notifyUpdateChange(downloadId);
+
+        mPrepareThread = new Thread(() -> {
+            PackageMetadata metadata;
+            Metrics.Timer timer = Metrics.beginSection("install.ab.stream_prepare_ms");
+            try {
+                RemoteZip zip = RemoteZip.open(url);
+                metadata = PackageMetadata.read(zip.getIndex(), zip.getUrl(), zip.length(),
+                        0, null);
+                checkPayload(metadata);
+                timer.stop();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not prepare " + url, e);
+                timer.cancel();
+                synchronized (ABUpdateInstaller.this) {
+                    if (mPrepareThread == Thread.currentThread()) {
+                        mPrepareThread = null;
+                        installationDone(false);
+                        mUpdaterController.getActualUpdate(downloadId)
+                                .setStatus(UpdateStatus.INSTALLATION_FAILED);
+                        mUpdaterController.notifyUpdateChange(downloadId);
+                    }
+                }
+                return;
+            }
+
+            synchronized (ABUpdateInstaller.this) {
+                if (mPrepareThread != Thread.currentThread()) {
+                    Log.d(TAG, "Installation cancelled while preparing");
+                    Update update = mUpdaterController.getActualUpdate(downloadId);
+                    // Unless installed again in the meantime
+                    if (mPrepareThread == null && update != null &&
+                            update.getStatus() == UpdateStatus.INSTALLING &&
+                            !isInstallingUpdate(mContext, downloadId)) {
+                        update.setStatus(UpdateStatus.INSTALLATION_CANCELLED);
+                        mUpdaterController.notifyUpdateChange(downloadId);
+                    }
+                    return;
+                }
+                mPrepareThread = null;
+                Log.d(TAG, "Streaming " + metadata.getPayloadSize() + " bytes at " +
+                        metadata.getPayloadOffset() + " from " + metadata.getPath());
+                if (!applyPayload(metadata.getPath(), metadata.getPayloadOffset(),
+                        metadata.getPayloadSize(), metadata.getPayloadProperties())) {
+                    installationDone(false);
+                }
+            }
+        });
+        mPrepareThread.start();
+        return true;
+    }
+
+    private static void checkPayload(PackageMetadata metadata) throws IOException {
+        if (!metadata.isABUpdate()) {
+            throw new IOException("Not an A/B update");
+        }
+        if (metadata.getPayloadOffset() < 0) {
+            throw new IOException("The payload is compressed");
+        }
+    }
+
+    /**
+     * @param size the size of the payload, 0 if it goes until the end of the file
+     */
+    private boolean applyPayload(String url, long offset, long size,
+            String[] headerKeyValuePairs) {
+        synchronized (mPhaseLock) {
+            mTimePhases = true;
+            mPhase = -1;
         }
 
         if (!mBound) {
             mBound = mUpdateEngine.bind(mUpdateEngineCallback);
             if (!mBound) {
                 Log.e(TAG, "Could not bind");
-                mUpdaterController.getActualUpdate(downloadId)
+                mUpdaterController.getActualUpdate(mDownloadId)
                         .setStatus(UpdateStatus.INSTALLATION_FAILED);
-                mUpdaterController.notifyUpdateChange(downloadId);
+                mUpdaterController.notifyUpdateChange(mDownloadId);
                 return false;
             }
         }
@@ -213,8 +314,7 @@ class ABUpdateInstaller {
                 .getBoolean(Constants.PREF_AB_PERF_MODE, false);
         mUpdateEngine.setPerformanceMode(enableABPerfMode);
 
-        String zipFileUri = "file://" + file.getAbsolutePath();
-        mUpdateEngine.applyPayload(zipFileUri, offset, 0, headerKeyValuePairs);
+        mUpdateEngine.applyPayload(url, offset, size, headerKeyValuePairs);
 
         mUpdaterController.getActualUpdate(mDownloadId).setStatus(UpdateStatus.INSTALLING);
         mUpdaterController.notifyUpdateChange(mDownloadId);
@@ -226,13 +326,14 @@ class ABUpdateInstaller {
         return true;
     }
 
-    public boolean reconnect() {
+    public synchronized boolean reconnect() {
         if (!isInstallingUpdate(mContext)) {
             Log.e(TAG, "reconnect: Not installing any update");
             return false;
         }
 
-        if (mBound) {
+        // Bound once the metadata of the streamed update is fetched
+        if (mBound || mPrepareThread != null) {
             return true;
         }
 
@@ -249,6 +350,54 @@ class ABUpdateInstaller {
         return true;
     }
 
+    private static String getPhaseName(int status) {
+        switch (status) {
+            case UpdateEngine.UpdateStatusConstants.DOWNLOADING:
+                return "apply";
+            case UpdateEngine.UpdateStatusConstants.VERIFYING:
+                return "verify";
+            case UpdateEngine.UpdateStatusConstants.FINALIZING:
+                return "finalize";
+            default:
+                return null;
+        }
+    }
+
+    private void onPhaseChanged(int status) {
+        synchronized (mPhaseLock) {
+            if (!mTimePhases || status == mPhase) {
+                return;
+            }
+            if (mPhaseTimer != null) {
+                mPhaseTimer.stop();
+                mPhaseTimer = null;
+            }
+            mPhase = status;
+            String name = getPhaseName(status);
+            if (name != null) {
+                mPhaseTimer = Metrics.beginAsyncSection("install.ab." + name + "_ms");
+            }
+        }
+    }
+
+    /**
+     * @param completed whether the current phase ran until its end
+     */
+    private void stopPhaseTimer(boolean completed) {
+        synchronized (mPhaseLock) {
+            if (mPhaseTimer != null) {
+                if (completed) {
+                    mPhaseTimer.stop();
+                } else {
+                    mPhaseTimer.cancel();
+                }
+                mPhaseTimer = null;
+            }
+            // A suspended or reconnected installation would be timed partially
+            mTimePhases = false;
+        }
+    }
+
     private void installationDone(boolean needsReboot) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
         String id = needsReboot ? prefs.getString(PREF_INSTALLING_AB_ID, null) : null;
@@ -258,18 +407,29 @@ class ABUpdateInstaller {
                 .apply();
     }
 
-    public boolean cancel() {
+    public synchronized boolean cancel() {
         if (!isInstallingUpdate(mContext)) {
             Log.e(TAG, "cancel: Not installing any update");
             return false;
         }
 
+        if (mPrepareThread != null) {
+            // update_engine wasn't given the payload yet, the thread stops on its own
+            mPrepareThread = null;
+            installationDone(false);
+            mUpdaterController.getActualUpdate(mDownloadId)
+                    .setStatus(UpdateStatus.INSTALLATION_CANCELLED);
+            mUpdaterController.notifyUpdateChange(mDownloadId);
+            return true;
+        }
+
         if (!mBound) {
             Log.e(TAG, "Not connected to update engine");
             return false;
         }
 
         mUpdateEngine.cancel();
+        stopPhaseTimer(false);
         installationDone(false);
 
         mUpdaterController.getActualUpdate(mDownloadId)
@@ -295,6 +455,7 @@ class ABUpdateInstaller {
         }
 
         mUpdateEngine.suspend();
+        stopPhaseTimer(false);
 
         mUpdaterController.getActualUpdate(mDownloadId)
                 .setStatus(UpdateStatus.INSTALLATION_SUSPENDED);
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.controller;
+
+import org.lineageos.updater.model.UpdateInfo;
+
+import java.util.PriorityQueue;
+
+/**
+ * Downloads waiting for a free slot. The newest build is started first, builds with
+ * the same timestamp are started in the order they were queued.
+ */
+class DownloadScheduler {
+
+    private static class Entry implements Comparable<Entry> {
+        private final String mDownloadId;
+        private final long mTimestamp;
+        private final long mSequence;
+
+        private Entry(String downloadId, long timestamp, long sequence) {
+            mDownloadId = downloadId;
+            mTimestamp = timestamp;
+            mSequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            if (mTimestamp != other.mTimestamp) {
+                return Long.compare(other.mTimestamp, mTimestamp);
+            }
+            return Long.compare(mSequence, other.mSequence);
+        }
+    }
+
+    private final PriorityQueue<Entry> mQueue = new PriorityQueue<>();
+    private long mSequence;
+    private volatile int mMaxConcurrentDownloads;
+
+    DownloadScheduler(int maxConcurrentDownloads) {
+        setMaxConcurrentDownloads(maxConcurrentDownloads);
+    }
+
+    int getMaxConcurrentDownloads() {
+        return mMaxConcurrentDownloads;
+    }
+
+    void setMaxConcurrentDownloads(int maxConcurrentDownloads) {
+        mMaxConcurrentDownloads = Math.max(1, maxConcurrentDownloads);
+    }
+
+    /**
+     * @return false if the update is already queued
+     */
+    synchronized boolean add(UpdateInfo update) {
+        if (contains(update.getDownloadId())) {
+            return false;
+        }
+        mQueue.add(new Entry(update.getDownloadId(), update.getTimestamp(), mSequence++));
+        return true;
+    }
+
+    /**
+     * @return true if the update was queued
+     */
+    synchronized boolean remove(String downloadId) {
+        return mQueue.removeIf(entry -> entry.mDownloadId.equals(downloadId));
+    }
+
+    synchronized boolean contains(String downloadId) {
+        for (Entry entry : mQueue) {
+            if (entry.mDownloadId.equals(downloadId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized boolean isEmpty() {
+        return mQueue.isEmpty();
+    }
+
+    /**
+     * Remove the download that should be started next.
+     *
+     * @return its id, null if nothing is queued
+     */
+    synchronized String poll() {
+        Entry entry = mQueue.poll();
+        return entry != null ? entry.mDownloadId : null;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.controller;
+
+import org.lineageos.updater.MirrorsDbHelper;
+import org.lineageos.updater.MirrorsDbHelper.MirrorScore;
+import org.lineageos.updater.download.MirrorProber;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Mirror scores persisted across rankings. Measurements are blended with the previous
+ * score of the mirror, and old scores fade towards the median of all the mirrors so
+ * that a mirror that was slow once gets a chance again.
+ */
+final class MirrorScores {
+
+    // Scores older than this are shown, but the mirrors should be ranked again
+    static final long TTL_MS = 6 * 60 * 60 * 1000L;
+
+    private static final long HALF_LIFE_MS = 24 * 60 * 60 * 1000L;
+
+    // How much a fresh score counts when blended with a new measurement
+    private static final double PREVIOUS_WEIGHT = 0.3;
+
+    // Score of a mirror that failed, as if a segment took this long to download
+    private static final double FAILED_SCORE = 5 * 60 * 1000;
+
+    private MirrorScores() {
+    }
+
+    private static double decay(long age) {
+        return Math.pow(0.5, (double) Math.max(0, age) / HALF_LIFE_MS);
+    }
+
+    /**
+     * Store the results of a ranking. Failed mirrors get a bad score, so that they're
+     * sorted after the ones that replied and aren't probed again before the others.
+     */
+    static void update(MirrorsDbHelper dbHelper, List<MirrorProber.Result> results, long now) {
+        Map<String, MirrorScore> previous = new HashMap<>();
+        for (MirrorScore score : dbHelper.getMirrorScores()) {
+            previous.put(score.getMirrorName(), score);
+        }
+        for (MirrorProber.Result result : results) {
+            double score = result.isFailed() ? FAILED_SCORE : result.getScore();
+            MirrorScore old = previous.get(result.getName());
+            if (old != null) {
+                double weight = PREVIOUS_WEIGHT * decay(now - old.getTimestamp());
+                score = weight * old.getScore() + (1 - weight) * score;
+            }
+            dbHelper.setMirrorScore(new MirrorScore(result.getName(), score, now));
+        }
+    }
+
+    /**
+     * Get the current score of every mirror ranked at least once, lower is better.
+     */
+    static Map<String, Double> get(MirrorsDbHelper dbHelper, long now) {
+        List<MirrorScore> scores = dbHelper.getMirrorScores();
+        Map<String, Double> current = new HashMap<>();
+        if (scores.isEmpty()) {
+            return current;
+        }
+
+        List<Double> values = new ArrayList<>();
+        for (MirrorScore score : scores) {
+            values.add(score.getScore());
+        }
+        Collections.sort(values);
+        double median = values.get(values.size() / 2);
+
+        for (MirrorScore score : scores) {
+            double weight = decay(now - score.getTimestamp());
+            current.put(score.getMirrorName(),
+                    median + (score.getScore() - median) * weight);
+        }
+        return current;
+    }
+
+    /**
+     * Whether the given mirrors should be ranked again. Mirrors that were never
+     * ranked are only retried along with the others.
+     */
+    static boolean isStale(MirrorsDbHelper dbHelper, Iterable<String> mirrors, long now) {
+        Map<String, Long> timestamps = new HashMap<>();
+        for (MirrorScore score : dbHelper.getMirrorScores()) {
+            timestamps.put(score.getMirrorName(), score.getTimestamp());
+        }
+        boolean ranked = false;
+        for (String mirror : mirrors) {
+            Long timestamp = timestamps.get(mirror);
+            if (timestamp == null) {
+                continue;
+            }
+            if (now - timestamp > TTL_MS || timestamp > now) {
+                return true;
+            }
+            ranked = true;
+        }
+        return !ranked;
+    }
+}
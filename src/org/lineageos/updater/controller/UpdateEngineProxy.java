@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.controller;
+
+import android.os.UpdateEngine;
+import android.os.UpdateEngineCallback;
+
+/**
+ * The calls ABUpdateInstaller makes to update_engine, so that installations can be run
+ * against a fake engine.
+ */
+interface UpdateEngineProxy {
+
+    /**
+     * What update_engine reports, see UpdateEngineCallback. The hidden class isn't
+     * referenced by the installer, so that it can be loaded without the framework.
+     */
+    interface Callback {
+        void onStatusUpdate(int status, float percent);
+
+        void onPayloadApplicationComplete(int errorCode);
+    }
+
+    /**
+     * @return false if update_engine can't be reached
+     */
+    boolean bind(Callback callback);
+
+    void applyPayload(String url, long offset, long size, String[] headerKeyValuePairs);
+
+    void cancel();
+
+    void suspend();
+
+    void resume();
+
+    void setPerformanceMode(boolean enable);
+
+    /**
+     * Forward the calls to the update_engine of the system.
+     */
+    static UpdateEngineProxy create() {
+        UpdateEngine updateEngine = new UpdateEngine();
+        return new UpdateEngineProxy() {
+            @Override
+            public boolean bind(Callback callback) {
+                return updateEngine.bind(new UpdateEngineCallback() {
+                    @Override
+                    public void onStatusUpdate(int status, float percent) {
+                        callback.onStatusUpdate(status, percent);
+                    }
+
+                    @Override
+                    public void onPayloadApplicationComplete(int errorCode) {
+                        callback.onPayloadApplicationComplete(errorCode);
+                    }
+                });
+            }
+
+            @Override
+            public void applyPayload(String url, long offset, long size,
+                    String[] headerKeyValuePairs) {
+                updateEngine.applyPayload(url, offset, size, headerKeyValuePairs);
+            }
+
+            @Override
+            public void cancel() {
+                updateEngine.cancel();
+            }
+
+            @Override
+            public void suspend() {
+                updateEngine.suspend();
+            }
+
+            @Override
+            public void resume() {
+                updateEngine.resume();
+            }
+
+            @Override
+            public void setPerformanceMode(boolean enable) {
+                updateEngine.setPerformanceMode(enable);
+            }
+        };
+    }
+}
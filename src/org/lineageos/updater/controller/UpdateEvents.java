@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.controller;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import org.lineageos.updater.model.Update;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Delivers the changes of the updates to the listeners on the main thread. Events of
+ * the same update are merged and delivered at most once per frame, together with a
+ * copy of the update taken when they are delivered.
+ */
+class UpdateEvents {
+
+    static final int STATUS = 1;
+    static final int DOWNLOAD_PROGRESS = 1 << 1;
+    static final int INSTALL_PROGRESS = 1 << 2;
+    static final int INSTALL_FINISHED = 1 << 3;
+    static final int REMOVED = 1 << 4;
+
+    private static final long FRAME_INTERVAL_MS = 16;
+
+    interface UpdateLookup {
+        Update get(String downloadId);
+    }
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final List<UpdaterController.UpdateListener> mListeners =
+            new CopyOnWriteArrayList<>();
+    private final UpdateLookup mLookup;
+
+    // Guarded by this. Updates are delivered in the order of their first pending event
+    private final Map<String, Integer> mPending = new LinkedHashMap<>();
+    private final Map<String, Update> mRemoved = new HashMap<>();
+    private boolean mScheduled;
+    private long mLastDispatchMillis;
+
+    UpdateEvents(UpdateLookup lookup) {
+        mLookup = lookup;
+    }
+
+    void addListener(UpdaterController.UpdateListener listener) {
+        mListeners.add(listener);
+    }
+
+    void removeListener(UpdaterController.UpdateListener listener) {
+        mListeners.remove(listener);
+    }
+
+    synchronized void post(String downloadId, int event) {
+        Integer events = mPending.get(downloadId);
+        mPending.put(downloadId, events != null ? events | event : event);
+        if (!mScheduled) {
+            mScheduled = true;
+            long delay = mLastDispatchMillis + FRAME_INTERVAL_MS - SystemClock.uptimeMillis();
+            mHandler.postDelayed(this::dispatch, Math.max(0, delay));
+        }
+    }
+
+    /**
+     * The update is no longer tracked, remember how it looked like.
+     */
+    synchronized void postRemoved(Update update) {
+        mRemoved.put(update.getDownloadId(), new Update(update));
+        post(update.getDownloadId(), REMOVED);
+    }
+
+    private void dispatch() {
+        Map<String, Integer> pending;
+        Map<String, Update> removed;
+        synchronized (this) {
+            pending = new LinkedHashMap<>(mPending);
+            removed = new HashMap<>(mRemoved);
+            mPending.clear();
+            mRemoved.clear();
+            mScheduled = false;
+            mLastDispatchMillis = SystemClock.uptimeMillis();
+        }
+
+        for (Map.Entry<String, Integer> entry : pending.entrySet()) {
+            int events = entry.getValue();
+            Update snapshot;
+            if ((events & REMOVED) != 0) {
+                snapshot = removed.get(entry.getKey());
+            } else {
+                Update update = mLookup.get(entry.getKey());
+                if (update == null) {
+                    continue;
+                }
+                snapshot = new Update(update);
+            }
+            for (UpdaterController.UpdateListener listener : mListeners) {
+                if ((events & STATUS) != 0) {
+                    listener.onUpdateStatusChanged(snapshot);
+                }
+                if ((events & DOWNLOAD_PROGRESS) != 0) {
+                    listener.onDownloadProgress(snapshot);
+                }
+                if ((events & INSTALL_PROGRESS) != 0) {
+                    listener.onInstallProgress(snapshot);
+                }
+                if ((events & INSTALL_FINISHED) != 0) {
+                    listener.onInstallFinished(snapshot);
+                }
+                if ((events & REMOVED) != 0) {
+                    listener.onUpdateRemoved(snapshot);
+                }
+            }
+        }
+    }
+}
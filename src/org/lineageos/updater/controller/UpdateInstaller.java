@@ -17,14 +17,12 @@ package org.lineageos.updater.controller;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.util.Log;
 
 import androidx.preference.PreferenceManager;
 
 import org.lineageos.updater.misc.Constants;
-import org.lineageos.updater.misc.FileUtils;
 import org.lineageos.updater.misc.Utils;
 import org.lineageos.updater.model.UpdateInfo;
 import org.lineageos.updater.model.UpdateStatus;
@@ -92,85 +90,77 @@ class UpdateInstaller {
 
         if (Utils.isEncrypted(mContext, update.getFile())) {
             // uncrypt rewrites the file so that it can be read without mounting
-            // the filesystem, so create a copy of it.
+            // the filesystem. The download is handed over as is and deleted after
+            // the next boot, when it can no longer be read.
             prepareForUncryptAndInstall(update);
         } else {
             installPackage(update.getFile(), downloadId);
         }
     }
 
-    private void installPackage(File update, String downloadId) {
+    /**
+     * @return false if the installation couldn't be started
+     */
+    private boolean installPackage(File update, String downloadId) {
         try {
             android.os.RecoverySystem.installPackage(mContext, update);
+            return true;
         } catch (IOException e) {
             Log.e(TAG, "Could not install update", e);
             mUpdaterController.getActualUpdate(downloadId)
                     .setStatus(UpdateStatus.INSTALLATION_FAILED);
             mUpdaterController.notifyUpdateChange(downloadId);
+            return false;
         }
     }
 
     private synchronized void prepareForUncryptAndInstall(UpdateInfo update) {
-        String uncryptFilePath = update.getFile().getAbsolutePath() + Constants.UNCRYPT_FILE_EXT;
-        File uncryptFile = new File(uncryptFilePath);
-
-        Runnable copyUpdateRunnable = new Runnable() {
-            private long mLastUpdate = -1;
-
-            FileUtils.ProgressCallBack mProgressCallBack = new FileUtils.ProgressCallBack() {
-                @Override
-                public void update(int progress) {
-                    long now = SystemClock.elapsedRealtime();
-                    if (mLastUpdate < 0 || now - mLastUpdate > 500) {
-                        mUpdaterController.getActualUpdate(update.getDownloadId())
-                                .setInstallProgress(progress);
-                        mUpdaterController.notifyInstallProgress(update.getDownloadId());
-                        mLastUpdate = now;
-                    }
+        File file = update.getFile();
+
+        Runnable prepareUpdateRunnable = () -> {
+            try {
+                mCanCancel = true;
+                // uncrypt doesn't run as the owner of the file
+                Set<PosixFilePermission> perms = new HashSet<>();
+                perms.add(PosixFilePermission.OWNER_READ);
+                perms.add(PosixFilePermission.OWNER_WRITE);
+                perms.add(PosixFilePermission.OTHERS_READ);
+                perms.add(PosixFilePermission.GROUP_READ);
+                Files.setPosixFilePermissions(file.toPath(), perms);
+
+                mCanCancel = false;
+                if (mPrepareUpdateThread.isInterrupted()) {
+                    mUpdaterController.getActualUpdate(update.getDownloadId())
+                            .setStatus(UpdateStatus.INSTALLATION_CANCELLED);
+                    mUpdaterController.getActualUpdate(update.getDownloadId())
+                            .setInstallProgress(0);
+                    return;
                 }
-            };
-
-            @Override
-            public void run() {
-                try {
-                    mCanCancel = true;
-                    FileUtils.copyFile(update.getFile(), uncryptFile, mProgressCallBack);
-                    try {
-                        Set<PosixFilePermission> perms = new HashSet<>();
-                        perms.add(PosixFilePermission.OWNER_READ);
-                        perms.add(PosixFilePermission.OWNER_WRITE);
-                        perms.add(PosixFilePermission.OTHERS_READ);
-                        perms.add(PosixFilePermission.GROUP_READ);
-                        Files.setPosixFilePermissions(uncryptFile.toPath(), perms);
-                    } catch (IOException exception) {}
-
+                SharedPreferences preferences =
+                        PreferenceManager.getDefaultSharedPreferences(mContext);
+                // The device reboots right away, the preference must be written before
+                preferences.edit()
+                        .putInt(Constants.PREF_INSTALL_UNCRYPT_BOOT_COUNT,
+                                Utils.getBootCount(mContext))
+                        .commit();
+                if (!installPackage(file, update.getDownloadId())) {
+                    preferences.edit().remove(Constants.PREF_INSTALL_UNCRYPT_BOOT_COUNT).apply();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Could not prepare update", e);
+                mUpdaterController.getActualUpdate(update.getDownloadId())
+                        .setStatus(UpdateStatus.INSTALLATION_FAILED);
+            } finally {
+                synchronized (UpdateInstaller.this) {
                     mCanCancel = false;
-                    if (mPrepareUpdateThread.isInterrupted()) {
-                        mUpdaterController.getActualUpdate(update.getDownloadId())
-                                .setStatus(UpdateStatus.INSTALLATION_CANCELLED);
-                        mUpdaterController.getActualUpdate(update.getDownloadId())
-                                .setInstallProgress(0);
-                        uncryptFile.delete();
-                    } else {
-                        installPackage(uncryptFile, update.getDownloadId());
-                    }
-                } catch (IOException e) {
-                    Log.e(TAG, "Could not copy update", e);
-                    uncryptFile.delete();
-                    mUpdaterController.getActualUpdate(update.getDownloadId())
-                            .setStatus(UpdateStatus.INSTALLATION_FAILED);
-                } finally {
-                    synchronized (UpdateInstaller.this) {
-                        mCanCancel = false;
-                        mPrepareUpdateThread = null;
-                        sInstallingUpdate = null;
-                    }
-                    mUpdaterController.notifyUpdateChange(update.getDownloadId());
+                    mPrepareUpdateThread = null;
+                    sInstallingUpdate = null;
                 }
+                mUpdaterController.notifyUpdateChange(update.getDownloadId());
             }
         };
 
-        mPrepareUpdateThread = new Thread(copyUpdateRunnable);
+        mPrepareUpdateThread = new Thread(prepareUpdateRunnable);
         mPrepareUpdateThread.start();
         sInstallingUpdate = update.getDownloadId();
         mCanCancel = false;
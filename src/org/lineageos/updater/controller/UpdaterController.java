@@ -16,14 +16,13 @@
 package org.lineageos.updater.controller;
 
 import android.content.Context;
-import android.content.Intent;
-import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.PowerManager;
 import android.os.SystemClock;
 import android.util.Log;
 
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
-
 import android.os.SystemProperties;
 
 import org.lineageos.updater.R;
@@ -31,27 +30,35 @@ import org.lineageos.updater.UpdatesActivity;
 import org.lineageos.updater.UpdatesDbHelper;
 import org.lineageos.updater.MirrorsDbHelper;
 import org.lineageos.updater.download.DownloadClient;
+import org.lineageos.updater.download.DownloadJournal;
+import org.lineageos.updater.download.MirrorProber;
+import org.lineageos.updater.misc.Metrics;
+import org.lineageos.updater.misc.PackageMetadata;
 import org.lineageos.updater.misc.Utils;
 import org.lineageos.updater.model.Update;
 import org.lineageos.updater.model.UpdateInfo;
 import org.lineageos.updater.model.UpdateStatus;
 import org.lineageos.updater.misc.Constants;
 
-import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
@@ -62,11 +69,6 @@ import com.google.android.material.snackbar.Snackbar;
 
 public class UpdaterController {
 
-    public static final String ACTION_DOWNLOAD_PROGRESS = "action_download_progress";
-    public static final String ACTION_INSTALL_FINISHED = "action_install_finished";
-    public static final String ACTION_INSTALL_PROGRESS = "action_install_progress";
-    public static final String ACTION_UPDATE_REMOVED = "action_update_removed";
-    public static final String ACTION_UPDATE_STATUS = "action_update_status_change";
     public static final String EXTRA_DOWNLOAD_ID = "extra_download_id";
 
     private static final String TAG = "UpdaterController";
@@ -75,23 +77,42 @@ public class UpdaterController {
 
     private static final int MAX_REPORT_INTERVAL_MS = 1000;
 
+    private static final int DOWNLOAD_SEGMENTS = 4;
+    private static final int DOWNLOAD_RACE_DUPLICATE_LINKS = 3;
+
+    private static final long RANK_MIRRORS_TIMEOUT_MS = 10000;
+
+    // Threads used to verify and delete updates
+    private static final int IO_THREADS = 2;
+
     private final Context mContext;
-    private final LocalBroadcastManager mBroadcastManager;
     private final UpdatesDbHelper mUpdatesDbHelper;
     private static MirrorsDbHelper mirrorsDbHelper;
 
     private final PowerManager.WakeLock mWakeLock;
 
+    // Serializes database writes
+    private final Handler mEventHandler;
+    private final UpdatesDbWriter mUpdatesDbWriter;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // Guarded by mReadyCallbacks
+    private final List<Runnable> mReadyCallbacks = new ArrayList<>();
+    private boolean mReady;
+    private final ExecutorService mIoExecutor = Executors.newFixedThreadPool(IO_THREADS);
+    private final UpdateEvents mUpdateEvents = new UpdateEvents(this::getActualUpdate);
+
     private final File mDownloadRoot;
 
-    private int mActiveDownloads = 0;
-    private Set<String> mVerifyingUpdates = new HashSet<>();
+    private final AtomicInteger mActiveDownloads = new AtomicInteger();
+    private final DownloadScheduler mDownloadScheduler;
+    private final Set<String> mVerifyingUpdates = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean mRankingMirrors = new AtomicBoolean();
 
     // Sourceforge variable instances
-    private static Map<String, String> mirror_links;
-    private static Map<Double, String> ranked_mirrors;
-    private static Map<String, String> sorted_mirrors;
-    public static Map<Double, String> sorted_ranked_mirrors;
+    private static Map<String, String> mirror_links = new LinkedHashMap<>();
+    private static Map<String, String> sorted_mirrors = new LinkedHashMap<>();
+    public static Map<Double, String> sorted_ranked_mirrors = new TreeMap<>();
 
     public static synchronized UpdaterController getInstance() {
         return sUpdaterController;
@@ -105,72 +126,130 @@ public class UpdaterController {
     }
 
     private UpdaterController(Context context) {
-        mBroadcastManager = LocalBroadcastManager.getInstance(context);
-        mUpdatesDbHelper = new UpdatesDbHelper(context);
+        mUpdatesDbHelper = UpdatesDbHelper.getInstance(context);
         mirrorsDbHelper = MirrorsDbHelper.getInstance(context);
         mDownloadRoot = Utils.getDownloadPath(context);
         PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
         mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "Updater");
         mWakeLock.setReferenceCounted(false);
         mContext = context.getApplicationContext();
+        mDownloadScheduler = new DownloadScheduler(
+                context.getResources().getInteger(R.integer.max_concurrent_downloads));
+
+        HandlerThread eventThread = new HandlerThread(TAG);
+        eventThread.start();
+        mEventHandler = new Handler(eventThread.getLooper());
+        mUpdatesDbWriter = new UpdatesDbWriter(mUpdatesDbHelper, mEventHandler);
+
+        // Keep the disk and the database off the thread creating the controller
+        mEventHandler.post(() -> {
+            Metrics.Timer timer = Metrics.beginSection("controller.init_ms");
+            Utils.cleanupDownloadsDir(mContext);
+            // Before the updates are shown, so that their mirrors are known
+            mirrorsDbHelper.ensureLoaded();
+            for (Update update : mUpdatesDbHelper.getUpdates()) {
+                addUpdate(update, false);
+            }
+            timer.stop();
+            onReady();
+        });
+    }
+
+    private void onReady() {
+        List<Runnable> callbacks;
+        synchronized (mReadyCallbacks) {
+            mReady = true;
+            callbacks = new ArrayList<>(mReadyCallbacks);
+            mReadyCallbacks.clear();
+        }
+        Log.d(TAG, "Ready with " + mDownloads.size() + " updates");
+        for (Runnable callback : callbacks) {
+            mMainHandler.post(callback);
+        }
+    }
 
-        Utils.cleanupDownloadsDir(context);
+    public boolean isReady() {
+        synchronized (mReadyCallbacks) {
+            return mReady;
+        }
+    }
 
-        for (Update update : mUpdatesDbHelper.getUpdates()) {
-            addUpdate(update, false);
+    /**
+     * Run the callback on the main thread once the stored updates are loaded. Until
+     * then, the controller doesn't know about them.
+     */
+    public void whenReady(Runnable callback) {
+        synchronized (mReadyCallbacks) {
+            if (!mReady) {
+                mReadyCallbacks.add(callback);
+                return;
+            }
+        }
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            callback.run();
+        } else {
+            mMainHandler.post(callback);
         }
     }
 
     private class DownloadEntry {
         final Update mUpdate;
-        DownloadClient mDownloadClient;
+        // Only changed while holding the lock of the entry
+        volatile DownloadClient mDownloadClient;
         private DownloadEntry(Update update) {
             mUpdate = update;
         }
     }
 
-    private static Map<String, DownloadEntry> mDownloads = new HashMap<>();
+    private static Map<String, DownloadEntry> mDownloads = new ConcurrentHashMap<>();
+
+    /**
+     * Listener of the changes of the updates. Methods are called on the main thread
+     * with a copy of the update, which isn't modified afterwards.
+     */
+    public interface UpdateListener {
+        default void onUpdateStatusChanged(UpdateInfo update) {
+        }
+
+        default void onDownloadProgress(UpdateInfo update) {
+        }
+
+        default void onInstallProgress(UpdateInfo update) {
+        }
+
+        default void onInstallFinished(UpdateInfo update) {
+        }
+
+        default void onUpdateRemoved(UpdateInfo update) {
+        }
+    }
+
+    public void addUpdateListener(UpdateListener listener) {
+        mUpdateEvents.addListener(listener);
+    }
+
+    public void removeUpdateListener(UpdateListener listener) {
+        mUpdateEvents.removeListener(listener);
+    }
 
     void notifyUpdateChange(String downloadId) {
-        new Thread(() -> {
-            try {
-                Thread.sleep(500);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-            Intent intent = new Intent();
-            intent.setAction(ACTION_UPDATE_STATUS);
-            intent.putExtra(EXTRA_DOWNLOAD_ID, downloadId);
-            mBroadcastManager.sendBroadcast(intent);
-        }).start();
+        mUpdateEvents.post(downloadId, UpdateEvents.STATUS);
     }
 
-    void notifyUpdateDelete(String downloadId) {
-        Intent intent = new Intent();
-        intent.setAction(ACTION_UPDATE_REMOVED);
-        intent.putExtra(EXTRA_DOWNLOAD_ID, downloadId);
-        mBroadcastManager.sendBroadcast(intent);
+    private void notifyUpdateDelete(Update update) {
+        mUpdateEvents.postRemoved(update);
     }
 
     void notifyDownloadProgress(String downloadId) {
-        Intent intent = new Intent();
-        intent.setAction(ACTION_DOWNLOAD_PROGRESS);
-        intent.putExtra(EXTRA_DOWNLOAD_ID, downloadId);
-        mBroadcastManager.sendBroadcast(intent);
+        mUpdateEvents.post(downloadId, UpdateEvents.DOWNLOAD_PROGRESS);
     }
 
     void notifyInstallProgress(String downloadId) {
-        Intent intent = new Intent();
-        intent.setAction(ACTION_INSTALL_PROGRESS);
-        intent.putExtra(EXTRA_DOWNLOAD_ID, downloadId);
-        mBroadcastManager.sendBroadcast(intent);
+        mUpdateEvents.post(downloadId, UpdateEvents.INSTALL_PROGRESS);
     }
 
     void notifyInstallFinished(String downloadId) {
-        Intent intent = new Intent();
-        intent.setAction(ACTION_INSTALL_FINISHED);
-        intent.putExtra(EXTRA_DOWNLOAD_ID, downloadId);
-        mBroadcastManager.sendBroadcast(intent);
+        mUpdateEvents.post(downloadId, UpdateEvents.INSTALL_FINISHED);
     }
 
     private void tryReleaseWakelock() {
@@ -179,20 +258,34 @@ public class UpdaterController {
         }
     }
 
-    private void addDownloadClient(DownloadEntry entry, DownloadClient downloadClient) {
-        if (entry.mDownloadClient != null) {
-            return;
+    /**
+     * @return false if the update is already being downloaded
+     */
+    private boolean addDownloadClient(DownloadEntry entry, DownloadClient downloadClient) {
+        synchronized (entry) {
+            if (entry.mDownloadClient != null) {
+                return false;
+            }
+            entry.mDownloadClient = downloadClient;
         }
-        entry.mDownloadClient = downloadClient;
-        mActiveDownloads++;
+        mActiveDownloads.incrementAndGet();
+        return true;
     }
 
-    private void removeDownloadClient(DownloadEntry entry) {
-        if (entry.mDownloadClient == null) {
-            return;
+    /**
+     * @return the client that was removed, null if another thread removed it first
+     */
+    private DownloadClient removeDownloadClient(DownloadEntry entry) {
+        DownloadClient downloadClient;
+        synchronized (entry) {
+            downloadClient = entry.mDownloadClient;
+            if (downloadClient == null) {
+                return null;
+            }
+            entry.mDownloadClient = null;
         }
-        entry.mDownloadClient = null;
-        mActiveDownloads--;
+        mActiveDownloads.decrementAndGet();
+        return downloadClient;
     }
 
     private DownloadClient.DownloadCallback getDownloadCallback(final String downloadId) {
@@ -212,41 +305,87 @@ public class UpdaterController {
                         Log.e(TAG, "Could not get content-length");
                     }
                 }
-                update.setStatus(UpdateStatus.DOWNLOADING);
+                if (!update.compareAndSetStatus(UpdateStatus.STARTING, UpdateStatus.DOWNLOADING)
+                        && update.getStatus() != UpdateStatus.DOWNLOADING) {
+                    // Paused before the server replied
+                    return;
+                }
                 update.setPersistentStatus(UpdateStatus.Persistent.INCOMPLETE);
-                new Thread(() -> mUpdatesDbHelper.addUpdateWithOnConflict(update,
-                        SQLiteDatabase.CONFLICT_REPLACE)).start();
+                mUpdatesDbWriter.upsert(update);
                 notifyUpdateChange(downloadId);
             }
 
             @Override
             public void onSuccess(File destination) {
                 Log.d(TAG, "Download complete");
-                Update update = mDownloads.get(downloadId).mUpdate;
-                update.setStatus(UpdateStatus.VERIFYING);
-                removeDownloadClient(mDownloads.get(downloadId));
-                verifyUpdateAsync(downloadId);
+                DownloadEntry entry = mDownloads.get(downloadId);
+                DownloadClient downloadClient = removeDownloadClient(entry);
+                if (downloadClient == null) {
+                    // Paused while completing, the file is verified when resumed
+                    tryReleaseWakelock();
+                    return;
+                }
+                Metrics.increment("download.completed");
+                entry.mUpdate.setStatus(UpdateStatus.VERIFYING);
+                verifyUpdateAsync(downloadId, downloadClient.getDigest());
                 notifyUpdateChange(downloadId);
+                startQueuedDownloads();
                 tryReleaseWakelock();
             }
 
             @Override
             public void onFailure(boolean cancelled) {
-                Update update = mDownloads.get(downloadId).mUpdate;
+                DownloadEntry entry = mDownloads.get(downloadId);
                 if (cancelled) {
                     Log.d(TAG, "Download cancelled");
                     // Already notified
-                } else {
+                } else if (removeDownloadClient(entry) != null) {
                     Log.e(TAG, "Download failed");
-                    removeDownloadClient(mDownloads.get(downloadId));
-                    update.setStatus(UpdateStatus.PAUSED_ERROR);
+                    Metrics.increment("download.failed");
+                    entry.mUpdate.setStatus(UpdateStatus.PAUSED_ERROR);
                     notifyUpdateChange(downloadId);
+                    startQueuedDownloads();
                 }
                 tryReleaseWakelock();
             }
         };
     }
 
+    private DownloadClient.MirrorListener getMirrorListener(final String downloadId) {
+        return url -> {
+            Update update = mDownloads.get(downloadId).mUpdate;
+            for (Map.Entry<String, String> mirror : getArrowMirrorLinks(update).entrySet()) {
+                if (mirror.getValue().equals(url)) {
+                    mirrorsDbHelper.setMirrorName(mirror.getKey(), downloadId);
+                    break;
+                }
+            }
+            mirrorsDbHelper.setMirrorUrl(url, downloadId);
+            update.setDownloadUrl(url);
+            Log.d(TAG, "Download of " + downloadId + " moved to " + url);
+        };
+    }
+
+    /**
+     * Get the URLs of the update on the other mirrors, best ranked first.
+     */
+    private List<String> getFallbackMirrors(UpdateInfo update) {
+        Map<String, String> mirrorLinks = getArrowMirrorLinks(update);
+        Map<String, Double> scores = MirrorScores.get(mirrorsDbHelper,
+                System.currentTimeMillis());
+        List<String> names = new ArrayList<>(mirrorLinks.keySet());
+        names.sort(Comparator.comparingDouble(
+                name -> scores.getOrDefault(name, Double.MAX_VALUE)));
+        List<String> mirrors = new ArrayList<>();
+        for (String name : names) {
+            String url = mirrorLinks.get(name);
+            if (!url.equals(update.getDownloadUrl()) && !mirrors.contains(url)) {
+                mirrors.add(url);
+            }
+        }
+        return mirrors;
+    }
+
     private DownloadClient.ProgressListener getProgressListener(final String downloadId) {
         return new DownloadClient.ProgressListener() {
             private long mLastUpdate = 0;
@@ -275,30 +414,106 @@ public class UpdaterController {
                     update.setEta(eta);
                     update.setSpeed(speed);
                     notifyDownloadProgress(downloadId);
+                    if (speed > 0) {
+                        String mirror = mirrorsDbHelper.getMirrorName(downloadId);
+                        Metrics.recordCounter("download.speed_bps." +
+                                (mirror != null ? mirror : "unknown"), speed);
+                    }
                 }
             }
         };
     }
 
-    private void verifyUpdateAsync(final String downloadId) {
-        mVerifyingUpdates.add(downloadId);
-        new Thread(() -> {
+    /**
+     * @param digest the SHA-256 computed while downloading the update, null if not known
+     */
+    private void verifyUpdateAsync(final String downloadId, final String digest) {
+        if (!mVerifyingUpdates.add(downloadId)) {
+            return;
+        }
+        mIoExecutor.execute(() -> {
             Update update = mDownloads.get(downloadId).mUpdate;
             File file = update.getFile();
-            if (file.exists()) {
+            Metrics.Timer timer = Metrics.beginSection("update.verify_ms");
+            boolean verified = file.exists() && verifyDigest(update, digest);
+            timer.stop();
+            if (verified) {
                 file.setReadable(true, false);
-                update.setPersistentStatus(UpdateStatus.Persistent.VERIFIED);
-                mUpdatesDbHelper.changeUpdateStatus(update);
-                update.setStatus(UpdateStatus.VERIFIED);
+                // Read the package once here, not when listed or installed
+                try {
+                    PackageMetadata.update(mContext, file,
+                            digest != null ? digest : update.getSha256());
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not read the metadata of " + file, e);
+                }
             } else {
-                update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
-                mUpdatesDbHelper.removeUpdate(downloadId);
-                update.setProgress(0);
-                update.setStatus(UpdateStatus.VERIFICATION_FAILED);
+                Metrics.increment("update.verification_failed");
             }
-            mVerifyingUpdates.remove(downloadId);
-            notifyUpdateChange(downloadId);
-        }).start();
+            mEventHandler.post(() -> {
+                mVerifyingUpdates.remove(downloadId);
+                if (update.getStatus() != UpdateStatus.VERIFYING) {
+                    // Deleted in the meantime
+                    return;
+                }
+                if (verified) {
+                    update.setPersistentStatus(UpdateStatus.Persistent.VERIFIED);
+                    mUpdatesDbWriter.changeStatus(update);
+                    update.compareAndSetStatus(UpdateStatus.VERIFYING, UpdateStatus.VERIFIED);
+                } else {
+                    update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
+                    mUpdatesDbWriter.remove(downloadId);
+                    update.setProgress(0);
+                    update.compareAndSetStatus(UpdateStatus.VERIFYING,
+                            UpdateStatus.VERIFICATION_FAILED);
+                }
+                notifyUpdateChange(downloadId);
+            });
+        });
+    }
+
+    private boolean verifyDigest(Update update, String digest) {
+        String expected = update.getSha256();
+        if (expected == null) {
+            // Nothing to compare with
+            return true;
+        }
+        if (digest == null) {
+            // Known if the file was already verified and didn't change since
+            digest = PackageMetadata.getSha256(mContext, update.getFile());
+        }
+        if (digest == null) {
+            Log.d(TAG, "Digest of " + update.getDownloadId() + " not known, hashing the file");
+            try {
+                digest = computeDigest(update.getFile());
+            } catch (IOException | NoSuchAlgorithmException e) {
+                Log.e(TAG, "Could not hash " + update.getFile(), e);
+                return false;
+            }
+        }
+        if (!expected.equalsIgnoreCase(digest)) {
+            Log.e(TAG, "Digest mismatch, expected " + expected + " got " + digest);
+            update.getFile().delete();
+            return false;
+        }
+        Log.d(TAG, "Digest verified");
+        return true;
+    }
+
+    private static String computeDigest(File file) throws IOException,
+            NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        try (InputStream inputStream = new FileInputStream(file)) {
+            byte[] b = new byte[64 * 1024];
+            int count;
+            while ((count = inputStream.read(b)) > 0) {
+                digest.update(b, 0, count);
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte x : digest.digest()) {
+            sb.append(String.format("%02x", x));
+        }
+        return sb.toString();
     }
 
     private boolean verifyPackage(File file) {
@@ -325,6 +540,16 @@ public class UpdaterController {
                 if (update.getFile() == null || !update.getFile().exists()) {
                     update.setStatus(UpdateStatus.UNKNOWN);
                     return false;
+                } else if (DownloadJournal.exists(update.getFile())) {
+                    // Only the parts recorded in the journal will be kept
+                    DownloadJournal journal = DownloadJournal.load(update.getFile());
+                    update.setStatus(UpdateStatus.PAUSED);
+                    if (journal != null && update.getFileSize() > 0) {
+                        update.setProgress(Math.round(
+                                journal.getCompletedBytes() * 100 / update.getFileSize()));
+                    } else {
+                        update.setProgress(0);
+                    }
                 } else if (update.getFileSize() > 0) {
                     update.setStatus(UpdateStatus.PAUSED);
                     int progress = Math.round(
@@ -345,7 +570,7 @@ public class UpdaterController {
         }
     }
 
-    public void setUpdatesAvailableOnline(List<String> downloadIds, boolean purgeList) {
+    public synchronized void setUpdatesAvailableOnline(List<String> downloadIds, boolean purgeList) {
         List<String> toRemove = new ArrayList<>();
         for (DownloadEntry entry : mDownloads.values()) {
             boolean online = downloadIds.contains(entry.mUpdate.getDownloadId());
@@ -357,9 +582,9 @@ public class UpdaterController {
         }
         for (String downloadId : toRemove) {
             Log.d(TAG, downloadId + " no longer available online, removing");
-            mDownloads.remove(downloadId);
-            notifyUpdateDelete(downloadId);
-            mirrorsDbHelper.delUpdate(downloadId);
+            mDownloadScheduler.remove(downloadId);
+            notifyUpdateDelete(mDownloads.remove(downloadId).mUpdate);
+            mEventHandler.post(() -> mirrorsDbHelper.delUpdate(downloadId));
         }
     }
 
@@ -367,15 +592,19 @@ public class UpdaterController {
         return addUpdate(update, true);
     }
 
-    private boolean addUpdate(final UpdateInfo updateInfo, boolean availableOnline) {
+    private synchronized boolean addUpdate(final UpdateInfo updateInfo, boolean availableOnline) {
         Log.d(TAG, "Adding download: " + updateInfo.getDownloadId());
         if (mDownloads.containsKey(updateInfo.getDownloadId())) {
             Log.d(TAG, "Download (" + updateInfo.getDownloadId() + ") already added");
             Update updateAdded = mDownloads.get(updateInfo.getDownloadId()).mUpdate;
             updateAdded.setAvailableOnline(availableOnline && updateAdded.getAvailableOnline());
-            if (mirrorsDbHelper.getMirrorUrl(updateInfo.getDownloadId()) != null) {
-                updateAdded.setDownloadUrl(mirrorsDbHelper.getMirrorUrl(updateInfo.getDownloadId()));
-                Log.d(TAG, "Using previous mirror :" + mirrorsDbHelper.getMirrorUrl(updateInfo.getDownloadId()));
+            if (updateInfo.getSha256() != null) {
+                updateAdded.setSha256(updateInfo.getSha256());
+            }
+            String mirrorUrl = mirrorsDbHelper.getMirrorUrl(updateInfo.getDownloadId());
+            if (mirrorUrl != null) {
+                updateAdded.setDownloadUrl(mirrorUrl);
+                Log.d(TAG, "Using previous mirror :" + mirrorUrl);
             } else {
                 updateAdded.setDownloadUrl(updateInfo.getDownloadUrl());
                 Log.d(TAG, "Using default server url :" + updateInfo.getDownloadUrl());
@@ -392,14 +621,16 @@ public class UpdaterController {
         update.setAvailableOnline(availableOnline);
         mDownloads.put(update.getDownloadId(), new DownloadEntry(update));
         if (!mirrorsDbHelper.isUpdateExists(updateInfo.getDownloadId())) {
-            mirrorsDbHelper.setUpdate(updateInfo.getDownloadId());
+            // Possibly called on the UI thread, write in the same order as the updates
+            mEventHandler.post(() -> mirrorsDbHelper.setUpdate(updateInfo.getDownloadId()));
             Log.d(TAG, "Adding new update to mirrors database: " + update.getDownloadId());
         } else {
             // Set previous mirror url if update already exists in mirrorsDB
             Update updateAdded = mDownloads.get(updateInfo.getDownloadId()).mUpdate;
-            if (mirrorsDbHelper.getMirrorUrl(updateInfo.getDownloadId()) != null) {
-                updateAdded.setDownloadUrl(mirrorsDbHelper.getMirrorUrl(updateInfo.getDownloadId()));
-                Log.d(TAG, "Setting previous mirror :" + mirrorsDbHelper.getMirrorUrl(updateInfo.getDownloadId()));
+            String mirrorUrl = mirrorsDbHelper.getMirrorUrl(updateInfo.getDownloadId());
+            if (mirrorUrl != null) {
+                updateAdded.setDownloadUrl(mirrorUrl);
+                Log.d(TAG, "Setting previous mirror :" + mirrorUrl);
             }
         }
         return true;
@@ -441,100 +672,105 @@ public class UpdaterController {
         }
     }
 
-    private static Map<String, String> sortMirrors(Map<Double, String> ranked_mirrors) {
-        sorted_ranked_mirrors = new TreeMap<>(ranked_mirrors);
-        for (Map.Entry<Double, String> rank_links : sorted_ranked_mirrors.entrySet()) {
-            for (Map.Entry<String, String> mirror_links : mirror_links.entrySet()) {
-                if (rank_links.getValue().equals(mirror_links.getKey())) {
-                    sorted_mirrors.put(rank_links.getValue(), mirror_links.getValue());
-                    Log.d(TAG, "sorted mirrors list: " + rank_links.getValue());
-                }
+    private static Map<String, String> sortMirrors(Map<String, String> mirrorLinks,
+            Map<String, Double> scores) {
+        Map<Double, String> rankedMirrors = new TreeMap<>();
+        for (Map.Entry<String, Double> score : scores.entrySet()) {
+            if (!mirrorLinks.containsKey(score.getKey())) {
+                continue;
             }
+            double rank = Math.round(score.getValue());
+            // Don't lose mirrors with the same score
+            while (rankedMirrors.containsKey(rank)) {
+                rank++;
+            }
+            rankedMirrors.put(rank, score.getKey());
         }
-        return sorted_mirrors;
-    }
-
-    private static Map<String, String> cookRankMirrorsData(Map<String, String> rank_links) {
-        ExecutorService mExecutor = Executors.newCachedThreadPool();
-
-        for (Map.Entry<String, String> rlinks : rank_links.entrySet()) {
-            String rank_url = rlinks.getValue();
-            String rank_name = rlinks.getKey();
-            RankMirrors rm = new RankMirrors(rank_url, rank_name);
-            mExecutor.execute(rm);
+        Map<String, String> sortedMirrors = new LinkedHashMap<>();
+        for (String mirror : rankedMirrors.values()) {
+            sortedMirrors.put(mirror, mirrorLinks.get(mirror));
+            Log.d(TAG, "sorted mirrors list: " + mirror);
         }
+        sorted_ranked_mirrors = rankedMirrors;
+        sorted_mirrors = sortedMirrors;
+        return sortedMirrors;
+    }
 
-        mExecutor.shutdown();
+    private static Map<String, String> cookRankMirrorsData(Context context,
+            Map<String, String> mirrors) {
+        MirrorsDbHelper dbHelper = MirrorsDbHelper.getInstance(context);
         try {
-            mExecutor.awaitTermination(30, TimeUnit.SECONDS);
-            return sortMirrors(ranked_mirrors);
+            List<MirrorProber.Result> results =
+                    MirrorProber.rank(mirrors, RANK_MIRRORS_TIMEOUT_MS);
+            MirrorScores.update(dbHelper, results, System.currentTimeMillis());
         } catch (InterruptedException e) {
-            Log.d(TAG, "Executor interrupted!", e);
+            Log.d(TAG, "Mirrors ranking interrupted!", e);
             return null;
         }
+        return sortMirrors(mirrors, MirrorScores.get(dbHelper, System.currentTimeMillis()));
     }
 
-    private static class RankMirrors implements Runnable {
-        private final String rank_url;
-        private final String rank_name;
-
-        RankMirrors(String rank_url, String rank_name) {
-            this.rank_url = rank_url;
-            this.rank_name = rank_name;
-        }
-
-        @Override
-        public void run() {
-            try {
-                String[] pingCmd = {"ping", "-c 5", rank_url};
-                String pingOutput;
-                double pingResult;
-                Runtime mRuntime = Runtime.getRuntime();
-                Process mProcess = mRuntime.exec(pingCmd);
-                BufferedReader in = new BufferedReader(new InputStreamReader(mProcess.getInputStream()));
-                pingOutput = in.readLine();
-
-                while (pingOutput != null) {
-                    if (pingOutput.contains("rtt")) {
-                        pingResult = Double.parseDouble(pingOutput.substring(pingOutput.lastIndexOf("/") + 1,
-                                                                             pingOutput.lastIndexOf("ms")));
-                        if (pingResult != 0)
-                            ranked_mirrors.put(pingResult, rank_name);
-                        Log.d(TAG, "mdev of mirror " + rank_name + " " + pingResult);
-                    }
-                    pingOutput = in.readLine();
-                }
-                in.close();
-            } catch (IOException e) {
-                Log.d(TAG, "Failed to rank mirror " + rank_name, e);
-            }
-        }
-    }
-
-    public static Map<String, String> arrowMirrors(UpdateInfo update, Boolean rankSort) {
+    private static Map<String, String> getArrowMirrorLinks(UpdateInfo update) {
         int mirrorCount = 1;
         String mirrorLink;
-        mirror_links = new LinkedHashMap<>();
-        ranked_mirrors = new LinkedHashMap<>();
-        sorted_mirrors = new LinkedHashMap<>();
-        Map<String, String> rank_links = new LinkedHashMap<>();
+        Map<String, String> mirrorLinks = new LinkedHashMap<>();
         String defaultMirrorUrl = update.getDownloadUrl();
 
         for (String mirror:
              Constants.arrowMirrors) {
             mirrorLink = defaultMirrorUrl.replaceFirst("mirror[0-9]", "mirror" + mirrorCount);
-            mirror_links.put(mirror, mirrorLink);
-            rank_links.put(mirror, mirrorLink.split("https://")[1].split("/download")[0]);
+            mirrorLinks.put(mirror, mirrorLink);
             mirrorCount++;
         }
+        return mirrorLinks;
+    }
+
+    public static Map<String, String> arrowMirrors(Context context, UpdateInfo update,
+            Boolean rankSort) {
+        Map<String, String> mirrorLinks = getArrowMirrorLinks(update);
+        mirror_links = mirrorLinks;
 
         if (rankSort) {
-            return cookRankMirrorsData(rank_links);
+            return cookRankMirrorsData(context, mirrorLinks);
         } else {
-            return mirror_links;
+            return mirrorLinks;
         }
     }
 
+    /**
+     * Get the mirrors sorted according to the scores of the previous rankings.
+     *
+     * @return the sorted mirrors, null if they were never ranked
+     */
+    public static Map<String, String> cachedArrowMirrors(Context context, UpdateInfo update) {
+        Map<String, String> mirrorLinks = getArrowMirrorLinks(update);
+        Map<String, Double> scores = MirrorScores.get(MirrorsDbHelper.getInstance(context),
+                System.currentTimeMillis());
+        mirror_links = mirrorLinks;
+        Map<String, String> sortedMirrors = sortMirrors(mirrorLinks, scores);
+        return sortedMirrors.isEmpty() ? null : sortedMirrors;
+    }
+
+    /**
+     * Rank the mirrors again in the background if the cached scores are too old.
+     */
+    public void refreshMirrorRankingIfStale(UpdateInfo update) {
+        if (!mRankingMirrors.compareAndSet(false, true)) {
+            return;
+        }
+        mIoExecutor.execute(() -> {
+            try {
+                if (MirrorScores.isStale(MirrorsDbHelper.getInstance(mContext),
+                        Arrays.asList(Constants.arrowMirrors), System.currentTimeMillis())) {
+                    Log.d(TAG, "Refreshing mirror scores");
+                    cookRankMirrorsData(mContext, getArrowMirrorLinks(update));
+                }
+            } finally {
+                mRankingMirrors.set(false);
+            }
+        });
+    }
+
 //    public static Map<String, String> sourceforgeMirrors(UpdateInfo update, Boolean rankSort) {
 //        mirror_links = new LinkedHashMap<>();
 //        ranked_mirrors = new LinkedHashMap<>();
@@ -577,7 +813,7 @@ public class UpdaterController {
 //            mirrorFetch.join();
 //
 //            if (rankSort) {
-//                return cookRankMirrorsData(rank_links);
+//                return cookRankMirrorsData(mirror_links);
 //            } else {
 //                return mirror_links;
 //            }
@@ -588,12 +824,57 @@ public class UpdaterController {
 //        }
 //    }
 
-    public boolean startDownload(String downloadId) {
+    /**
+     * Start the download as soon as fewer than the maximum number of downloads are
+     * running. Queued downloads are started newest build first.
+     */
+    public synchronized boolean enqueueDownload(String downloadId) {
+        DownloadEntry entry = mDownloads.get(downloadId);
+        if (entry == null || entry.mDownloadClient != null ||
+                !mDownloadScheduler.add(entry.mUpdate)) {
+            return false;
+        }
+        Log.d(TAG, "Queueing " + downloadId);
+        entry.mUpdate.setStatus(UpdateStatus.QUEUED);
+        notifyUpdateChange(downloadId);
+        startQueuedDownloads();
+        return true;
+    }
+
+    private synchronized void startQueuedDownloads() {
+        while (mActiveDownloads.get() < mDownloadScheduler.getMaxConcurrentDownloads()) {
+            String downloadId = mDownloadScheduler.poll();
+            if (downloadId == null) {
+                break;
+            }
+            DownloadEntry entry = mDownloads.get(downloadId);
+            if (entry == null) {
+                continue;
+            }
+            if (entry.mUpdate.getPersistentStatus() == UpdateStatus.Persistent.INCOMPLETE) {
+                resumeDownload(downloadId);
+            } else {
+                startDownload(downloadId);
+            }
+        }
+    }
+
+    public int getMaxConcurrentDownloads() {
+        return mDownloadScheduler.getMaxConcurrentDownloads();
+    }
+
+    public void setMaxConcurrentDownloads(int maxConcurrentDownloads) {
+        mDownloadScheduler.setMaxConcurrentDownloads(maxConcurrentDownloads);
+        startQueuedDownloads();
+    }
+
+    public synchronized boolean startDownload(String downloadId) {
         Log.d(TAG, "Starting " + downloadId);
-        if (!mDownloads.containsKey(downloadId) || isDownloading(downloadId)) {
+        DownloadEntry entry = mDownloads.get(downloadId);
+        if (entry == null || entry.mDownloadClient != null) {
             return false;
         }
-        Update update = mDownloads.get(downloadId).mUpdate;
+        Update update = entry.mUpdate;
         File destination = new File(mDownloadRoot, update.getName());
         if (destination.exists()) {
             destination = Utils.appendSequentialNumber(destination);
@@ -608,6 +889,11 @@ public class UpdaterController {
                     .setDownloadCallback(getDownloadCallback(downloadId))
                     .setProgressListener(getProgressListener(downloadId))
                     .setUseDuplicateLinks(true)
+                    .setRaceDuplicateLinks(DOWNLOAD_RACE_DUPLICATE_LINKS)
+                    .setSegments(DOWNLOAD_SEGMENTS)
+                    .setKeepJournal(true)
+                    .setFallbackMirrors(getFallbackMirrors(update))
+                    .setMirrorListener(getMirrorListener(downloadId))
                     .build();
         } catch (IOException exception) {
             Log.e(TAG, "Could not build download client");
@@ -615,7 +901,9 @@ public class UpdaterController {
             notifyUpdateChange(downloadId);
             return false;
         }
-        addDownloadClient(mDownloads.get(downloadId), downloadClient);
+        if (!addDownloadClient(entry, downloadClient)) {
+            return false;
+        }
         update.setStatus(UpdateStatus.STARTING);
         notifyUpdateChange(downloadId);
         downloadClient.start();
@@ -623,12 +911,13 @@ public class UpdaterController {
         return true;
     }
 
-    public boolean resumeDownload(String downloadId) {
+    public synchronized boolean resumeDownload(String downloadId) {
         Log.d(TAG, "Resuming " + downloadId);
-        if (!mDownloads.containsKey(downloadId) || isDownloading(downloadId)) {
+        DownloadEntry entry = mDownloads.get(downloadId);
+        if (entry == null || entry.mDownloadClient != null) {
             return false;
         }
-        Update update = mDownloads.get(downloadId).mUpdate;
+        Update update = entry.mUpdate;
         File file = update.getFile();
         if (file == null || !file.exists()) {
             Log.e(TAG, "The destination file of " + downloadId + " doesn't exist, can't resume");
@@ -636,10 +925,11 @@ public class UpdaterController {
             notifyUpdateChange(downloadId);
             return false;
         }
-        if (file.exists() && update.getFileSize() > 0 && file.length() >= update.getFileSize()) {
+        if (file.exists() && update.getFileSize() > 0 && file.length() >= update.getFileSize() &&
+                !DownloadJournal.exists(file)) {
             Log.d(TAG, "File already downloaded, starting verification");
             update.setStatus(UpdateStatus.VERIFYING);
-            verifyUpdateAsync(downloadId);
+            verifyUpdateAsync(downloadId, null);
             notifyUpdateChange(downloadId);
         } else {
             DownloadClient downloadClient;
@@ -650,6 +940,11 @@ public class UpdaterController {
                         .setDownloadCallback(getDownloadCallback(downloadId))
                         .setProgressListener(getProgressListener(downloadId))
                         .setUseDuplicateLinks(true)
+                        .setRaceDuplicateLinks(DOWNLOAD_RACE_DUPLICATE_LINKS)
+                        .setSegments(DOWNLOAD_SEGMENTS)
+                        .setKeepJournal(true)
+                        .setFallbackMirrors(getFallbackMirrors(update))
+                        .setMirrorListener(getMirrorListener(downloadId))
                         .build();
             } catch (IOException exception) {
                 Log.e(TAG, "Could not build download client");
@@ -657,7 +952,9 @@ public class UpdaterController {
                 notifyUpdateChange(downloadId);
                 return false;
             }
-            addDownloadClient(mDownloads.get(downloadId), downloadClient);
+            if (!addDownloadClient(entry, downloadClient)) {
+                return false;
+            }
             update.setStatus(UpdateStatus.STARTING);
             notifyUpdateChange(downloadId);
             downloadClient.resume();
@@ -666,38 +963,50 @@ public class UpdaterController {
         return true;
     }
 
-    public boolean pauseDownload(String downloadId) {
+    public synchronized boolean pauseDownload(String downloadId) {
         Log.d(TAG, "Pausing " + downloadId);
-        if (!isDownloading(downloadId)) {
+        DownloadEntry entry = mDownloads.get(downloadId);
+        if (entry != null && mDownloadScheduler.remove(downloadId)) {
+            entry.mUpdate.setStatus(entry.mUpdate.getPersistentStatus() ==
+                    UpdateStatus.Persistent.INCOMPLETE ? UpdateStatus.PAUSED :
+                    UpdateStatus.UNKNOWN);
+            notifyUpdateChange(downloadId);
+            return true;
+        }
+        DownloadClient downloadClient = entry != null ? removeDownloadClient(entry) : null;
+        if (downloadClient == null) {
             return false;
         }
 
-        DownloadEntry entry = mDownloads.get(downloadId);
-        entry.mDownloadClient.cancel();
-        removeDownloadClient(entry);
+        downloadClient.cancel();
         entry.mUpdate.setStatus(UpdateStatus.PAUSED);
         entry.mUpdate.setEta(0);
         entry.mUpdate.setSpeed(0);
         notifyUpdateChange(downloadId);
+        startQueuedDownloads();
         return true;
     }
 
     private void deleteUpdateAsync(final Update update) {
-        new Thread(() -> {
-            File file = update.getFile();
+        File file = update.getFile();
+        mIoExecutor.execute(() -> {
             if (file.exists() && !file.delete()) {
                 Log.e(TAG, "Could not delete " + file.getAbsolutePath());
             }
-            mUpdatesDbHelper.removeUpdate(update.getDownloadId());
-        }).start();
+            DownloadJournal.delete(file);
+            PackageMetadata.remove(mContext, file);
+        });
+        mUpdatesDbWriter.remove(update.getDownloadId());
     }
 
-    public boolean deleteUpdate(String downloadId) {
+    public synchronized boolean deleteUpdate(String downloadId) {
         Log.d(TAG, "Cancelling " + downloadId);
-        if (!mDownloads.containsKey(downloadId) || isDownloading(downloadId)) {
+        mDownloadScheduler.remove(downloadId);
+        DownloadEntry entry = mDownloads.get(downloadId);
+        if (entry == null || entry.mDownloadClient != null) {
             return false;
         }
-        Update update = mDownloads.get(downloadId).mUpdate;
+        Update update = entry.mUpdate;
         update.setStatus(UpdateStatus.DELETED);
         update.setProgress(0);
         update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
@@ -706,8 +1015,8 @@ public class UpdaterController {
         if (!update.getAvailableOnline()) {
             Log.d(TAG, "Download no longer available online, removing");
             mDownloads.remove(downloadId);
-            notifyUpdateDelete(downloadId);
-            mirrorsDbHelper.delUpdate(downloadId);
+            notifyUpdateDelete(update);
+            mEventHandler.post(() -> mirrorsDbHelper.delUpdate(downloadId));
         } else {
             notifyUpdateChange(downloadId);
         }
@@ -738,16 +1047,31 @@ public class UpdaterController {
     }
 
     public boolean isDownloading(String downloadId) {
-        return mDownloads.containsKey(downloadId) &&
-                mDownloads.get(downloadId).mDownloadClient != null;
+        DownloadEntry entry = mDownloads.get(downloadId);
+        return entry != null && entry.mDownloadClient != null;
+    }
+
+    /**
+     * Write the pending changes of the updates to the database. Blocks until done.
+     */
+    public void flushPendingWrites() {
+        mUpdatesDbWriter.flush();
     }
 
     public boolean hasActiveDownloads() {
-        return mActiveDownloads > 0;
+        return mActiveDownloads.get() > 0;
+    }
+
+    public boolean isQueued(String downloadId) {
+        return mDownloadScheduler.contains(downloadId);
+    }
+
+    public boolean hasQueuedDownloads() {
+        return !mDownloadScheduler.isEmpty();
     }
 
     public boolean isVerifyingUpdate() {
-        return mVerifyingUpdates.size() > 0;
+        return !mVerifyingUpdates.isEmpty();
     }
 
     public boolean isVerifyingUpdate(String downloadId) {
@@ -19,10 +19,7 @@ import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
-import android.content.BroadcastReceiver;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.os.Binder;
 import android.os.Bundle;
@@ -31,7 +28,6 @@ import android.text.format.Formatter;
 import android.util.Log;
 
 import androidx.core.app.NotificationCompat;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import androidx.preference.PreferenceManager;
 
 import org.lineageos.updater.R;
@@ -39,12 +35,15 @@ import org.lineageos.updater.UpdaterReceiver;
 import org.lineageos.updater.UpdatesActivity;
 import org.lineageos.updater.misc.BuildInfoUtils;
 import org.lineageos.updater.misc.Constants;
+import org.lineageos.updater.misc.Metrics;
 import org.lineageos.updater.misc.StringGenerator;
 import org.lineageos.updater.misc.Utils;
 import org.lineageos.updater.model.UpdateInfo;
 import org.lineageos.updater.model.UpdateStatus;
 
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.text.DateFormat;
 import java.text.NumberFormat;
 
@@ -72,7 +71,7 @@ public class UpdaterService extends Service {
     private final IBinder mBinder = new LocalBinder();
     private boolean mHasClients;
 
-    private BroadcastReceiver mBroadcastReceiver;
+    private UpdaterController.UpdateListener mUpdateListener;
     private NotificationCompat.Builder mNotificationBuilder;
     private NotificationManager mNotificationManager;
     private NotificationCompat.BigTextStyle mNotificationStyle;
@@ -103,57 +102,69 @@ public class UpdaterService extends Service {
                 PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
         mNotificationBuilder.setContentIntent(intent);
 
-        mBroadcastReceiver = new BroadcastReceiver() {
+        mUpdateListener = new UpdaterController.UpdateListener() {
             @Override
-            public void onReceive(Context context, Intent intent) {
-                String downloadId = intent.getStringExtra(UpdaterController.EXTRA_DOWNLOAD_ID);
-                if (UpdaterController.ACTION_UPDATE_STATUS.equals(intent.getAction())) {
-                    UpdateInfo update = mUpdaterController.getUpdate(downloadId);
-                    setNotificationTitle(update);
-                    Bundle extras = new Bundle();
-                    extras.putString(UpdaterController.EXTRA_DOWNLOAD_ID, downloadId);
-                    mNotificationBuilder.setExtras(extras);
-                    handleUpdateStatusChange(update);
-                } else if (UpdaterController.ACTION_DOWNLOAD_PROGRESS.equals(intent.getAction())) {
-                    UpdateInfo update = mUpdaterController.getUpdate(downloadId);
-                    handleDownloadProgressChange(update);
-                } else if (UpdaterController.ACTION_INSTALL_PROGRESS.equals(intent.getAction())) {
-                    UpdateInfo update = mUpdaterController.getUpdate(downloadId);
-                    setNotificationTitle(update);
-                    handleInstallProgress(update);
-                } else if (UpdaterController.ACTION_INSTALL_FINISHED.equals(intent.getAction())) {
-                    UpdateInfo update = mUpdaterController.getUpdate(downloadId);
-                    setNotificationTitle(update);
-                    handleUpdateStatusChange(update);
-                } else if (UpdaterController.ACTION_UPDATE_REMOVED.equals(intent.getAction())) {
-                    Bundle extras = mNotificationBuilder.getExtras();
-                    if (extras != null && downloadId.equals(
-                            extras.getString(UpdaterController.EXTRA_DOWNLOAD_ID))) {
-                        mNotificationBuilder.setExtras(null);
-                        UpdateInfo update = mUpdaterController.getUpdate(downloadId);
-                        if (update.getStatus() != UpdateStatus.INSTALLED) {
-                            mNotificationManager.cancel(NOTIFICATION_ID);
-                        }
+            public void onUpdateStatusChanged(UpdateInfo update) {
+                setNotificationTitle(update);
+                Bundle extras = new Bundle();
+                extras.putString(UpdaterController.EXTRA_DOWNLOAD_ID, update.getDownloadId());
+                mNotificationBuilder.setExtras(extras);
+                handleUpdateStatusChange(update);
+            }
+
+            @Override
+            public void onDownloadProgress(UpdateInfo update) {
+                handleDownloadProgressChange(update);
+            }
+
+            @Override
+            public void onInstallProgress(UpdateInfo update) {
+                setNotificationTitle(update);
+                handleInstallProgress(update);
+            }
+
+            @Override
+            public void onInstallFinished(UpdateInfo update) {
+                setNotificationTitle(update);
+                handleUpdateStatusChange(update);
+            }
+
+            @Override
+            public void onUpdateRemoved(UpdateInfo update) {
+                Bundle extras = mNotificationBuilder.getExtras();
+                if (extras != null && update.getDownloadId().equals(
+                        extras.getString(UpdaterController.EXTRA_DOWNLOAD_ID))) {
+                    mNotificationBuilder.setExtras(null);
+                    if (update.getStatus() != UpdateStatus.INSTALLED) {
+                        mNotificationManager.cancel(NOTIFICATION_ID);
                     }
                 }
             }
         };
-        IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(UpdaterController.ACTION_DOWNLOAD_PROGRESS);
-        intentFilter.addAction(UpdaterController.ACTION_INSTALL_FINISHED);
-        intentFilter.addAction(UpdaterController.ACTION_INSTALL_PROGRESS);
-        intentFilter.addAction(UpdaterController.ACTION_UPDATE_STATUS);
-        intentFilter.addAction(UpdaterController.ACTION_UPDATE_REMOVED);
-        LocalBroadcastManager.getInstance(this).registerReceiver(mBroadcastReceiver, intentFilter);
-
+        mUpdaterController.addUpdateListener(mUpdateListener);
     }
 
     @Override
     public void onDestroy() {
-        LocalBroadcastManager.getInstance(this).unregisterReceiver(mBroadcastReceiver);
+        mUpdaterController.removeUpdateListener(mUpdateListener);
+        mUpdaterController.flushPendingWrites();
+        Metrics.writeDumpFile(this);
         super.onDestroy();
     }
 
+    @Override
+    public void onTaskRemoved(Intent rootIntent) {
+        // The process might be killed soon
+        mUpdaterController.flushPendingWrites();
+        Metrics.writeDumpFile(this);
+        super.onTaskRemoved(rootIntent);
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        Metrics.dump(pw);
+    }
+
     public class LocalBinder extends Binder {
         public UpdaterService getService() {
             return UpdaterService.this;
@@ -177,6 +188,12 @@ public class UpdaterService extends Service {
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log.d(TAG, "Starting service");
 
+        // The commands refer to updates restored by the controller
+        mUpdaterController.whenReady(() -> handleCommand(intent));
+        return ABUpdateInstaller.isInstallingUpdate(this) ? START_STICKY : START_NOT_STICKY;
+    }
+
+    private void handleCommand(Intent intent) {
         if (intent == null || intent.getAction() == null) {
             if (ABUpdateInstaller.isInstallingUpdate(this)) {
                 // The service is being restarted.
@@ -188,7 +205,7 @@ public class UpdaterService extends Service {
             String downloadId = intent.getStringExtra(EXTRA_DOWNLOAD_ID);
             int action = intent.getIntExtra(EXTRA_DOWNLOAD_CONTROL, -1);
             if (action == DOWNLOAD_RESUME) {
-                mUpdaterController.resumeDownload(downloadId);
+                mUpdaterController.enqueueDownload(downloadId);
             } else if (action == DOWNLOAD_PAUSE) {
                 mUpdaterController.pauseDownload(downloadId);
             } else {
@@ -197,11 +214,19 @@ public class UpdaterService extends Service {
         } else if (ACTION_INSTALL_UPDATE.equals(intent.getAction())) {
             String downloadId = intent.getStringExtra(EXTRA_DOWNLOAD_ID);
             UpdateInfo update = mUpdaterController.getUpdate(downloadId);
+            if (Utils.canStreamUpdate(this, update)) {
+                ABUpdateInstaller installer = ABUpdateInstaller.getInstance(this,
+                        mUpdaterController);
+                installer.installStreaming(downloadId);
+                return;
+            }
             if (update.getPersistentStatus() != UpdateStatus.Persistent.VERIFIED) {
                 throw new IllegalArgumentException(update.getDownloadId() + " is not verified");
             }
+            // The installation can reboot the device
+            mUpdaterController.flushPendingWrites();
             try {
-                if (Utils.isABUpdate(update.getFile())) {
+                if (Utils.isABUpdate(this, update.getFile())) {
                     ABUpdateInstaller installer = ABUpdateInstaller.getInstance(this,
                             mUpdaterController);
                     installer.install(downloadId);
@@ -242,7 +267,6 @@ public class UpdaterService extends Service {
                 installer.resume();
             }
         }
-        return ABUpdateInstaller.isInstallingUpdate(this) ? START_STICKY : START_NOT_STICKY;
     }
 
     public UpdaterController getUpdaterController() {
@@ -251,6 +275,7 @@ public class UpdaterService extends Service {
 
     private void tryStopSelf() {
         if (!mHasClients && !mUpdaterController.hasActiveDownloads() &&
+                !mUpdaterController.hasQueuedDownloads() &&
                 !mUpdaterController.isInstallingUpdate()) {
             Log.d(TAG, "Service no longer needed, stopping");
             stopSelf();
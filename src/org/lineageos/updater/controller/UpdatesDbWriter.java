@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.controller;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.util.Log;
+
+import org.lineageos.updater.UpdatesDbHelper;
+import org.lineageos.updater.model.Update;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Write-behind layer in front of UpdatesDbHelper. Changes are kept in memory and
+ * written in a single transaction at most once per flush interval. Only the last
+ * change of each update is written, reading the values the update has at that time.
+ */
+class UpdatesDbWriter {
+
+    private static final String TAG = "UpdatesDbWriter";
+
+    private static final long FLUSH_INTERVAL_MS = 2000;
+
+    private static final int UPSERT = 0;
+    private static final int STATUS = 1;
+    private static final int DELETE = 2;
+
+    private static class Mutation {
+        private final int mType;
+        private final Update mUpdate;
+
+        private Mutation(int type, Update update) {
+            mType = type;
+            mUpdate = update;
+        }
+    }
+
+    private final UpdatesDbHelper mDbHelper;
+    private final Handler mHandler;
+    // Keeps flushes from different threads in order
+    private final Object mFlushLock = new Object();
+
+    // Guarded by this
+    private final Map<String, Mutation> mPending = new LinkedHashMap<>();
+    private boolean mScheduled;
+
+    UpdatesDbWriter(UpdatesDbHelper dbHelper, Handler handler) {
+        mDbHelper = dbHelper;
+        mHandler = handler;
+    }
+
+    /**
+     * Insert the update, or replace it if already stored.
+     */
+    void upsert(Update update) {
+        add(update.getDownloadId(), new Mutation(UPSERT, update));
+    }
+
+    /**
+     * Store the current persistent status of the update.
+     */
+    void changeStatus(Update update) {
+        add(update.getDownloadId(), new Mutation(STATUS, update));
+    }
+
+    void remove(String downloadId) {
+        add(downloadId, new Mutation(DELETE, null));
+    }
+
+    private synchronized void add(String downloadId, Mutation mutation) {
+        Mutation pending = mPending.get(downloadId);
+        // An upsert already stores the status, a status change can't undo a deletion
+        if (mutation.mType != STATUS || pending == null || pending.mType == STATUS) {
+            mPending.put(downloadId, mutation);
+        }
+        if (!mScheduled) {
+            mScheduled = true;
+            mHandler.postDelayed(this::flush, FLUSH_INTERVAL_MS);
+        }
+    }
+
+    /**
+     * Write the pending changes now. Can be called from any thread.
+     */
+    void flush() {
+        synchronized (mFlushLock) {
+            Map<String, Mutation> pending;
+            synchronized (this) {
+                pending = new LinkedHashMap<>(mPending);
+                mPending.clear();
+                mScheduled = false;
+            }
+            if (pending.isEmpty()) {
+                return;
+            }
+
+            SQLiteDatabase db = mDbHelper.getWritableDatabase();
+            db.beginTransactionNonExclusive();
+            try {
+                for (Map.Entry<String, Mutation> entry : pending.entrySet()) {
+                    Mutation mutation = entry.getValue();
+                    switch (mutation.mType) {
+                        case UPSERT:
+                            mDbHelper.upsertUpdate(mutation.mUpdate);
+                            break;
+                        case STATUS:
+                            mDbHelper.changeUpdateStatus(mutation.mUpdate);
+                            break;
+                        case DELETE:
+                            mDbHelper.removeUpdate(entry.getKey());
+                            break;
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            Log.d(TAG, "Wrote " + pending.size() + " changes");
+        }
+    }
+}
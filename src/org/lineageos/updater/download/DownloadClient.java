@@ -17,6 +17,8 @@ package org.lineageos.updater.download;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -34,6 +36,13 @@ public interface DownloadClient {
         void update(long bytesRead, long contentLength, long speed, long eta, boolean done);
     }
 
+    interface MirrorListener {
+        /**
+         * The download moved to the given fallback mirror.
+         */
+        void onMirrorChanged(String url);
+    }
+
     interface Headers {
         String get(String name);
 
@@ -58,12 +67,25 @@ public interface DownloadClient {
      */
     void cancel();
 
+    /**
+     * Get the SHA-256 of the downloaded file, computed while downloading it.
+     *
+     * @return the digest as lowercase hex string, null if the download didn't complete
+     */
+    String getDigest();
+
     final class Builder {
         private String mUrl;
         private File mDestination;
         private DownloadClient.DownloadCallback mCallback;
         private DownloadClient.ProgressListener mProgressListener;
         private boolean mUseDuplicateLinks;
+        private int mRaceDuplicateLinks;
+        private int mSegments;
+        private boolean mKeepJournal;
+        private final Map<String, String> mRequestHeaders = new LinkedHashMap<>();
+        private final List<String> mFallbackMirrors = new ArrayList<>();
+        private DownloadClient.MirrorListener mMirrorListener;
 
         public DownloadClient build() throws IOException {
             if (mUrl == null) {
@@ -73,8 +95,14 @@ public interface DownloadClient {
             } else if (mCallback == null) {
                 throw new IllegalStateException("No download callback defined");
             }
+            if (mSegments > 1) {
+                return new SegmentedDownloadClient(mUrl, mDestination, mProgressListener,
+                        mCallback, mUseDuplicateLinks, mRaceDuplicateLinks, mSegments,
+                        mRequestHeaders, mFallbackMirrors, mMirrorListener);
+            }
             return new HttpURLConnectionClient(mUrl, mDestination, mProgressListener, mCallback,
-                    mUseDuplicateLinks);
+                    mUseDuplicateLinks, mRaceDuplicateLinks, mKeepJournal, mRequestHeaders,
+                    mFallbackMirrors, mMirrorListener);
         }
 
         public Builder setUrl(String url) {
@@ -101,5 +129,59 @@ public interface DownloadClient {
             mUseDuplicateLinks = useDuplicateLinks;
             return this;
         }
+
+        /**
+         * Connect to up to the given number of duplicate links at the same time and
+         * download from the first one that replies successfully, instead of trying them
+         * one after the other. Only used together with setUseDuplicateLinks().
+         */
+        public Builder setRaceDuplicateLinks(int links) {
+            mRaceDuplicateLinks = links;
+            return this;
+        }
+
+        /**
+         * Download the file using up to the given number of parallel connections, each
+         * fetching a different byte range. Values lower than 2 use a single connection.
+         */
+        public Builder setSegments(int segments) {
+            mSegments = segments;
+            return this;
+        }
+
+        /**
+         * Keep track of what was written and synced to disk in a journal next to the
+         * destination, so that the download can be resumed after a crash. Meant for
+         * big files, since the destination is synced regularly. Downloads split in
+         * segments always keep a journal.
+         */
+        public Builder setKeepJournal(boolean keepJournal) {
+            mKeepJournal = keepJournal;
+            return this;
+        }
+
+        /**
+         * Add a header to the request, e.g. to make it conditional. Byte range requests
+         * of segmented downloads don't include it.
+         */
+        public Builder addRequestHeader(String name, String value) {
+            mRequestHeaders.put(name, value);
+            return this;
+        }
+
+        /**
+         * URLs of the same file on other mirrors, best first. If the speed of the
+         * download collapses, it continues from the next one with a byte range request.
+         */
+        public Builder setFallbackMirrors(List<String> urls) {
+            mFallbackMirrors.clear();
+            mFallbackMirrors.addAll(urls);
+            return this;
+        }
+
+        public Builder setMirrorListener(DownloadClient.MirrorListener mirrorListener) {
+            mMirrorListener = mirrorListener;
+            return this;
+        }
     }
 }
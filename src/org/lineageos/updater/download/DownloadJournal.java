@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.download;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Sidecar file kept next to an incomplete download, listing the byte ranges of the
+ * destination that were completely written and synced to disk. Anything outside of
+ * these ranges can't be trusted after a crash and has to be downloaded again.
+ */
+public class DownloadJournal {
+
+    private static final String TAG = "DownloadJournal";
+
+    private static final String JOURNAL_FILE_EXT = ".segments";
+    private static final String TEMP_FILE_EXT = ".tmp";
+
+    private static final int MAGIC = 0x4c4f444a;
+    private static final int VERSION = 1;
+
+    private final File mFile;
+    private final long mTotalLength;
+    // Start -> end (exclusive) of non overlapping, non adjacent ranges
+    private final TreeMap<Long, Long> mRanges = new TreeMap<>();
+
+    private DownloadJournal(File file, long totalLength) {
+        mFile = file;
+        mTotalLength = totalLength;
+    }
+
+    /**
+     * Get the journal file of the given destination.
+     */
+    public static File getFile(File destination) {
+        return new File(destination.getAbsolutePath() + JOURNAL_FILE_EXT);
+    }
+
+    /**
+     * Whether the given destination was left behind by a download that didn't
+     * complete. The length of such a file can't be trusted.
+     */
+    public static boolean exists(File destination) {
+        return getFile(destination).exists();
+    }
+
+    /**
+     * Delete the journal of the given destination, if any.
+     */
+    public static void delete(File destination) {
+        getFile(destination).delete();
+    }
+
+    /**
+     * Create an empty journal for the given destination. Nothing is written until
+     * {@link #save()} is called.
+     *
+     * @param totalLength the expected length of the destination, -1 if unknown
+     */
+    static DownloadJournal create(File destination, long totalLength) {
+        return new DownloadJournal(getFile(destination), totalLength);
+    }
+
+    /**
+     * Read the journal of the given destination.
+     *
+     * @return the journal, null if it doesn't exist or can't be read
+     */
+    public static DownloadJournal load(File destination) {
+        File file = getFile(destination);
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Log.e(TAG, "Unknown journal format " + file);
+                return null;
+            }
+            DownloadJournal journal = new DownloadJournal(file, in.readLong());
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                long start = in.readLong();
+                long end = in.readLong();
+                if (start < 0 || end < start ||
+                        (journal.mTotalLength >= 0 && end > journal.mTotalLength)) {
+                    Log.e(TAG, "Invalid range in " + file);
+                    return null;
+                }
+                journal.add(start, end);
+            }
+            return journal;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * The expected length of the destination, -1 if unknown.
+     */
+    public long getTotalLength() {
+        return mTotalLength;
+    }
+
+    /**
+     * The number of bytes of the destination that can be trusted.
+     */
+    public long getCompletedBytes() {
+        long completed = 0;
+        for (Map.Entry<Long, Long> range : mRanges.entrySet()) {
+            completed += range.getValue() - range.getKey();
+        }
+        return completed;
+    }
+
+    /**
+     * The number of bytes that can be trusted from the beginning of the destination.
+     */
+    public long getContiguousLength() {
+        Long end = mRanges.get(0L);
+        return end != null ? end : 0;
+    }
+
+    public boolean isComplete() {
+        return mTotalLength >= 0 && getContiguousLength() == mTotalLength;
+    }
+
+    /**
+     * Mark the given range as written and synced.
+     */
+    void add(long start, long end) {
+        if (end <= start) {
+            return;
+        }
+        Map.Entry<Long, Long> floor = mRanges.floorEntry(start);
+        if (floor != null && floor.getValue() >= start) {
+            start = floor.getKey();
+            end = Math.max(end, floor.getValue());
+        }
+        Map.Entry<Long, Long> next;
+        while ((next = mRanges.ceilingEntry(start)) != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            mRanges.remove(next.getKey());
+        }
+        mRanges.put(start, end);
+    }
+
+    /**
+     * Get the ranges that still have to be downloaded, as {start, end} pairs.
+     */
+    List<long[]> getMissingRanges() {
+        List<long[]> missing = new ArrayList<>();
+        long position = 0;
+        for (Map.Entry<Long, Long> range : mRanges.entrySet()) {
+            if (range.getKey() > position) {
+                missing.add(new long[] { position, range.getKey() });
+            }
+            position = range.getValue();
+        }
+        if (position < mTotalLength) {
+            missing.add(new long[] { position, mTotalLength });
+        }
+        return missing;
+    }
+
+    /**
+     * Atomically replace the journal on disk. The ranges must have been synced to
+     * the destination before calling this.
+     */
+    void save() throws IOException {
+        File tmp = new File(mFile.getAbsolutePath() + TEMP_FILE_EXT);
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(mTotalLength);
+            out.writeInt(mRanges.size());
+            for (Map.Entry<Long, Long> range : mRanges.entrySet()) {
+                out.writeLong(range.getKey());
+                out.writeLong(range.getValue());
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+        if (!tmp.renameTo(mFile)) {
+            tmp.delete();
+            throw new IOException("Could not replace " + mFile);
+        }
+    }
+
+    void delete() {
+        mFile.delete();
+    }
+}
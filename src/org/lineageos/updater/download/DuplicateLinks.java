@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.download;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Duplicate links, as described by RFC 6249, advertised by a server when redirecting.
+ */
+class DuplicateLinks {
+
+    private static final String TAG = "DuplicateLinks";
+
+    // https://tools.ietf.org/html/rfc6249
+    // https://tools.ietf.org/html/rfc5988#section-5
+    private static final Pattern LINK_PATTERN =
+            Pattern.compile("(?i)<(.+)>\\s*;\\s*rel=duplicate(?:.*pri=([0-9]+).*|.*)?");
+
+    interface ConnectionFactory {
+        /**
+         * Open and connect to the given URL.
+         */
+        HttpURLConnection connect(URL url) throws IOException;
+    }
+
+    private static class DuplicateLink {
+        private final String mUrl;
+        private final int mPriority;
+
+        private DuplicateLink(String url, int priority) {
+            mUrl = url;
+            mPriority = priority;
+        }
+    }
+
+    private DuplicateLinks() {
+    }
+
+    /**
+     * Get the duplicate links listed in the given headers, highest priority first.
+     */
+    static List<String> parse(Map<String, List<String>> headers) {
+        List<DuplicateLink> duplicates = new ArrayList<>();
+        for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+            if ("Link".equalsIgnoreCase(entry.getKey())) {
+                for (String field : entry.getValue()) {
+                    Matcher matcher = LINK_PATTERN.matcher(field);
+                    if (matcher.matches()) {
+                        String url = matcher.group(1);
+                        String pri = matcher.group(2);
+                        int priority = pri != null ? Integer.parseInt(pri) : 999999;
+                        duplicates.add(new DuplicateLink(url, priority));
+                        Log.d(TAG, "Adding duplicate link " + url);
+                    } else {
+                        Log.d(TAG, "Ignoring link " + field);
+                    }
+                }
+            }
+        }
+        duplicates.sort(Comparator.comparingInt(d -> d.mPriority));
+
+        List<String> urls = new ArrayList<>(duplicates.size());
+        for (DuplicateLink duplicate : duplicates) {
+            urls.add(duplicate.mUrl);
+        }
+        return urls;
+    }
+
+    /**
+     * Connect to all the given URLs at the same time.
+     *
+     * @param candidates the URLs to connect to
+     * @param factory used to open and connect each URL
+     * @param graceMillis once the first connection succeeds, how long to wait for the
+     *                    others before giving up on them
+     * @return the connections that replied with a successful status code, in order of
+     *         completion. Empty if none did
+     */
+    static List<HttpURLConnection> race(List<URL> candidates, ConnectionFactory factory,
+            long graceMillis) throws InterruptedException {
+        List<HttpURLConnection> winners = new ArrayList<>();
+        if (candidates.isEmpty()) {
+            return winners;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(candidates.size());
+        CompletionService<HttpURLConnection> completionService =
+                new ExecutorCompletionService<>(executor);
+        for (URL url : candidates) {
+            completionService.submit(() -> {
+                HttpURLConnection connection = factory.connect(url);
+                int responseCode = connection.getResponseCode();
+                if ((responseCode / 100) != 2) {
+                    connection.disconnect();
+                    throw new IOException(url + " replied with " + responseCode);
+                }
+                return connection;
+            });
+        }
+
+        int pending = candidates.size();
+        long deadline = -1;
+        try {
+            while (pending > 0) {
+                Future<HttpURLConnection> future;
+                if (deadline < 0) {
+                    future = completionService.take();
+                } else {
+                    long timeout = Math.max(0, deadline - SystemClock.elapsedRealtime());
+                    future = completionService.poll(timeout, TimeUnit.MILLISECONDS);
+                    if (future == null) {
+                        break;
+                    }
+                }
+                pending--;
+                try {
+                    HttpURLConnection connection = future.get();
+                    Log.d(TAG, "Duplicate link " + connection.getURL() + " replied");
+                    winners.add(connection);
+                    if (deadline < 0) {
+                        deadline = SystemClock.elapsedRealtime() + graceMillis;
+                    }
+                } catch (ExecutionException e) {
+                    Log.e(TAG, "Duplicate link failed", e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            for (HttpURLConnection connection : winners) {
+                connection.disconnect();
+            }
+            discardLosers(executor, completionService, pending);
+            throw e;
+        }
+        discardLosers(executor, completionService, pending);
+        return winners;
+    }
+
+    /**
+     * Connection attempts can't be interrupted, close the ones that complete after
+     * the race is over. This runs on the pool of the race, on the thread of the first
+     * attempt that completes, and the pool is shut down once all of them did.
+     */
+    private static void discardLosers(ExecutorService executor,
+            CompletionService<HttpURLConnection> completionService, int pending) {
+        if (pending == 0) {
+            executor.shutdown();
+            return;
+        }
+        executor.execute(() -> {
+            for (int i = 0; i < pending; i++) {
+                try {
+                    completionService.take().get().disconnect();
+                } catch (ExecutionException e) {
+                    // Nothing to close
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        executor.shutdown();
+    }
+}
@@ -19,32 +19,45 @@ import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
-import java.util.Comparator;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class HttpURLConnectionClient implements DownloadClient {
 
     private final static String TAG = "HttpURLConnectionClient";
 
+    // How often the downloaded data is synced and written to the journal
+    private static final int JOURNAL_INTERVAL_MS = 2000;
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+
     private HttpURLConnection mClient;
 
     private final File mDestination;
     private final DownloadClient.ProgressListener mProgressListener;
     private final DownloadClient.DownloadCallback mCallback;
     private final boolean mUseDuplicateLinks;
+    private final int mRaceDuplicateLinks;
+    private final boolean mKeepJournal;
+    private final Map<String, String> mRequestHeaders;
+    private final Deque<String> mFallbackMirrors;
+    private final DownloadClient.MirrorListener mMirrorListener;
 
     private DownloadThread mDownloadThread;
 
+    private volatile String mDigest;
+
     public class Headers implements DownloadClient.Headers {
         @Override
         public String get(String name) {
@@ -60,12 +73,19 @@ public class HttpURLConnectionClient implements DownloadClient {
     HttpURLConnectionClient(String url, File destination,
             DownloadClient.ProgressListener progressListener,
             DownloadClient.DownloadCallback callback,
-            boolean useDuplicateLinks) throws IOException {
-        mClient = (HttpURLConnection) new URL(url).openConnection();
+            boolean useDuplicateLinks, int raceDuplicateLinks, boolean keepJournal,
+            Map<String, String> requestHeaders, List<String> fallbackMirrors,
+            DownloadClient.MirrorListener mirrorListener) throws IOException {
+        mRequestHeaders = requestHeaders;
+        mFallbackMirrors = new ArrayDeque<>(fallbackMirrors);
+        mMirrorListener = mirrorListener;
+        mClient = openConnection(new URL(url));
         mDestination = destination;
         mProgressListener = progressListener;
         mCallback = callback;
         mUseDuplicateLinks = useDuplicateLinks;
+        mRaceDuplicateLinks = raceDuplicateLinks;
+        mKeepJournal = keepJournal;
     }
 
     @Override
@@ -96,12 +116,41 @@ public class HttpURLConnectionClient implements DownloadClient {
         mDownloadThread = null;
     }
 
+    private HttpURLConnection openConnection(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        for (Map.Entry<String, String> header : mRequestHeaders.entrySet()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+        if (!mFallbackMirrors.isEmpty()) {
+            // Don't wait forever on a stalled mirror when there are others
+            connection.setReadTimeout(ThroughputMonitor.getStallTimeout());
+        }
+        return connection;
+    }
+
+    @Override
+    public String getDigest() {
+        return mDigest;
+    }
+
     private void downloadFileResumeInternal() {
         if (!mDestination.exists()) {
             mCallback.onFailure(false);
             return;
         }
         long offset = mDestination.length();
+        if (DownloadJournal.exists(mDestination)) {
+            // Only what was synced to disk can be trusted
+            DownloadJournal journal = DownloadJournal.load(mDestination);
+            offset = journal != null ? journal.getContiguousLength() : 0;
+            try (RandomAccessFile file = new RandomAccessFile(mDestination, "rw")) {
+                file.setLength(offset);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not truncate " + mDestination, e);
+                mCallback.onFailure(false);
+                return;
+            }
+        }
         mClient.setRequestProperty("Range", "bytes=" + offset + "-");
         downloadFileInternalCommon(true);
     }
@@ -128,6 +177,28 @@ public class HttpURLConnectionClient implements DownloadClient {
         return statusCode == 206;
     }
 
+    /**
+     * Get the first byte and the total length from a Content-Range header.
+     *
+     * @return {start, total}, null if the header is missing or invalid
+     */
+    static long[] parseContentRange(String contentRange) {
+        if (contentRange == null) {
+            return null;
+        }
+        // bytes <start>-<end>/<total>
+        String[] parts = contentRange.trim().split("[ -/]");
+        if (parts.length != 4 || !"bytes".equalsIgnoreCase(parts[0])) {
+            return null;
+        }
+        try {
+            long total = "*".equals(parts[3]) ? -1 : Long.parseLong(parts[3]);
+            return new long[] { Long.parseLong(parts[1]), total };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
     private class DownloadThread extends Thread {
 
         private long mTotalBytes = 0;
@@ -166,54 +237,134 @@ public class HttpURLConnectionClient implements DownloadClient {
             }
         }
 
+        private void checkpoint(FileOutputStream outputStream, DownloadJournal journal)
+                throws IOException {
+            if (journal == null) {
+                return;
+            }
+            outputStream.getFD().sync();
+            journal.add(0, mTotalBytesRead);
+            journal.save();
+        }
+
+        /**
+         * Continue the download from the next fallback mirror able to serve the rest
+         * of the file.
+         *
+         * @return the stream to read from, null if no mirror is left
+         */
+        private InputStream switchToFallbackMirror(long totalBytes) {
+            String url;
+            while ((url = mFallbackMirrors.poll()) != null) {
+                HttpURLConnection connection = null;
+                try {
+                    connection = openConnection(new URL(url));
+                    connection.setRequestProperty("Range", "bytes=" + mTotalBytesRead + "-");
+                    connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+                    connection.connect();
+                    int responseCode = connection.getResponseCode();
+                    if (!isPartialContentCode(responseCode)) {
+                        throw new IOException("Server replied with " + responseCode);
+                    }
+                    long[] range = parseContentRange(connection.getHeaderField("Content-Range"));
+                    if (range == null || range[0] != mTotalBytesRead ||
+                            (totalBytes >= 0 && range[1] != totalBytes)) {
+                        throw new IOException("Unexpected range " +
+                                connection.getHeaderField("Content-Range"));
+                    }
+                    InputStream inputStream = connection.getInputStream();
+                    Log.d(TAG, "Continuing from " + url);
+                    mClient.disconnect();
+                    mClient = connection;
+                    if (mMirrorListener != null) {
+                        mMirrorListener.onMirrorChanged(url);
+                    }
+                    return inputStream;
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not switch to mirror " + url, e);
+                    if (connection != null) {
+                        connection.disconnect();
+                    }
+                }
+            }
+            return null;
+        }
+
         private void changeClientUrl(URL newUrl) throws IOException {
             String range = mClient.getRequestProperty("Range");
             mClient.disconnect();
-            mClient = (HttpURLConnection) newUrl.openConnection();
+            mClient = openConnection(newUrl);
             if (range != null) {
                 mClient.setRequestProperty("Range", range);
             }
         }
 
-        private void handleDuplicateLinks() throws IOException {
-            String protocol = mClient.getURL().getProtocol();
+        private HttpURLConnection connectToDuplicate(URL url, String range) throws IOException {
+            HttpURLConnection connection = openConnection(url);
+            if (range != null) {
+                connection.setRequestProperty("Range", range);
+            }
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.connect();
+            return connection;
+        }
 
-            class DuplicateLink {
-                private String mUrl;
-                private int mPriority;
-                private DuplicateLink(String url, int priority) {
-                    mUrl = url;
-                    mPriority = priority;
+        private boolean raceDuplicateLinks(String location, Deque<String> duplicates,
+                String protocol) throws IOException {
+            List<URL> candidates = new ArrayList<>(mRaceDuplicateLinks);
+            String newUrl = location;
+            while (newUrl != null && candidates.size() < mRaceDuplicateLinks) {
+                URL url = new URL(newUrl);
+                if (url.getProtocol().equals(protocol)) {
+                    candidates.add(url);
+                } else {
+                    Log.d(TAG, "Ignoring duplicate link " + newUrl + ", protocol changed");
                 }
+                newUrl = duplicates.poll();
+            }
+            if (newUrl != null) {
+                duplicates.addFirst(newUrl);
             }
 
-            PriorityQueue<DuplicateLink> duplicates = null;
-
-            for (Map.Entry<String, List<String>> entry : mClient.getHeaderFields().entrySet()) {
-                if ("Link".equalsIgnoreCase((entry.getKey()))) {
-                    duplicates = new PriorityQueue<>(entry.getValue().size(),
-                            Comparator.comparingInt(d -> d.mPriority));
-
-                    // https://tools.ietf.org/html/rfc6249
-                    // https://tools.ietf.org/html/rfc5988#section-5
-                    String regex = "(?i)<(.+)>\\s*;\\s*rel=duplicate(?:.*pri=([0-9]+).*|.*)?";
-                    Pattern pattern = Pattern.compile(regex);
-                    for (String field : entry.getValue()) {
-                        Matcher matcher = pattern.matcher(field);
-                        if (matcher.matches()) {
-                            String url = matcher.group(1);
-                            String pri = matcher.group(2);
-                            int priority = pri != null ? Integer.parseInt(pri) : 999999;
-                            duplicates.add(new DuplicateLink(url, priority));
-                            Log.d(TAG, "Adding duplicate link " + url);
-                        } else {
-                            Log.d(TAG, "Ignoring link " + field);
-                        }
-                    }
-                }
+            Log.d(TAG, "Racing " + candidates.size() + " duplicate links");
+            String range = mClient.getRequestProperty("Range");
+            List<HttpURLConnection> winners;
+            try {
+                winners = DuplicateLinks.race(candidates,
+                        url -> connectToDuplicate(url, range), 0);
+            } catch (InterruptedException e) {
+                interrupt();
+                throw new InterruptedIOException("Interrupted while racing duplicate links");
+            }
+            if (winners.isEmpty()) {
+                return false;
+            }
+            for (int i = 1; i < winners.size(); i++) {
+                winners.get(i).disconnect();
             }
+            mClient.disconnect();
+            mClient = winners.get(0);
+            Log.d(TAG, "Downloading from " + mClient.getURL());
+            return true;
+        }
+
+        private void handleDuplicateLinks() throws IOException {
+            String protocol = mClient.getURL().getProtocol();
+            Deque<String> duplicates = new ArrayDeque<>(
+                    DuplicateLinks.parse(mClient.getHeaderFields()));
 
             String newUrl = mClient.getHeaderField("Location");
+            if (mRaceDuplicateLinks > 1) {
+                if (raceDuplicateLinks(newUrl, duplicates, protocol)) {
+                    return;
+                }
+                // Keep going one by one with whatever is left
+                newUrl = duplicates.poll();
+                if (newUrl == null) {
+                    throw new IOException("None of the duplicate links replied");
+                }
+            }
+
             for (;;) {
                 try {
                     URL url = new URL(newUrl);
@@ -224,18 +375,16 @@ public class HttpURLConnectionClient implements DownloadClient {
                     }
                     Log.d(TAG, "Downloading from " + newUrl);
                     changeClientUrl(url);
-                    mClient.setConnectTimeout(5000);
+                    mClient.setConnectTimeout(CONNECT_TIMEOUT_MS);
                     mClient.connect();
                     if (!isSuccessCode(mClient.getResponseCode())) {
                         throw new IOException("Server replied with " + mClient.getResponseCode());
                     }
                     return;
                 } catch (IOException e) {
-                    if (duplicates != null && !duplicates.isEmpty()) {
-                        DuplicateLink link = duplicates.poll();
-                        duplicates.remove(link);
-                        newUrl = link.mUrl;
-                        Log.e(TAG, "Using duplicate link " + link.mUrl, e);
+                    if (!duplicates.isEmpty()) {
+                        newUrl = duplicates.poll();
+                        Log.e(TAG, "Using duplicate link " + newUrl, e);
                     } else {
                         throw e;
                     }
@@ -266,32 +415,93 @@ public class HttpURLConnectionClient implements DownloadClient {
                     return;
                 }
 
-                try (
-                        InputStream inputStream = mClient.getInputStream();
-                        OutputStream outputStream = new FileOutputStream(mDestination, mResume)
-                ) {
-                    mTotalBytes = mClient.getContentLength() + mTotalBytesRead;
+                InputStream inputStream = mClient.getInputStream();
+                try (FileOutputStream outputStream = new FileOutputStream(mDestination, mResume)) {
+                    long contentLength = mClient.getContentLengthLong();
+                    mTotalBytes = contentLength + mTotalBytesRead;
+                    DownloadJournal journal = null;
+                    if (mKeepJournal) {
+                        journal = DownloadJournal.create(mDestination,
+                                contentLength >= 0 ? mTotalBytes : -1);
+                        journal.add(0, mTotalBytesRead);
+                    }
+
+                    if (journal != null) {
+                        journal.save();
+                    }
+
+                    Sha256 digest = new Sha256();
+                    if (mTotalBytesRead > 0) {
+                        // The state of the digest isn't kept across runs
+                        Log.d(TAG, "Hashing the data downloaded so far");
+                        try (FileInputStream prefix = new FileInputStream(mDestination)) {
+                            digest.update(prefix.getChannel(), mTotalBytesRead);
+                        }
+                    }
+
                     byte[] b = new byte[8192];
                     int count;
-                    while (!isInterrupted() && (count = inputStream.read(b)) > 0) {
-                        outputStream.write(b, 0, count);
-                        mTotalBytesRead += count;
-                        calculateSpeed();
-                        calculateEta();
-                        if (mProgressListener != null) {
-                            mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta,
-                                    false);
+                    long lastCheckpoint = SystemClock.elapsedRealtime();
+                    ThroughputMonitor monitor = new ThroughputMonitor(lastCheckpoint);
+                    try {
+                        while (!isInterrupted()) {
+                            boolean stalled = false;
+                            try {
+                                count = inputStream.read(b);
+                            } catch (SocketTimeoutException e) {
+                                Log.e(TAG, "Download from " + mClient.getURL() + " stalled", e);
+                                stalled = true;
+                                count = 0;
+                            }
+                            if (count < 0) {
+                                break;
+                            }
+                            outputStream.write(b, 0, count);
+                            digest.update(b, 0, count);
+                            mTotalBytesRead += count;
+                            calculateSpeed();
+                            calculateEta();
+                            if (mProgressListener != null) {
+                                mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed,
+                                        mEta, false);
+                            }
+                            long now = SystemClock.elapsedRealtime();
+                            if (now - lastCheckpoint >= JOURNAL_INTERVAL_MS) {
+                                checkpoint(outputStream, journal);
+                                lastCheckpoint = now;
+                            }
+                            if (stalled || (!mFallbackMirrors.isEmpty() &&
+                                    monitor.update(mSpeed, now))) {
+                                InputStream fallback = switchToFallbackMirror(
+                                        contentLength >= 0 ? mTotalBytes : -1);
+                                if (fallback != null) {
+                                    inputStream = fallback;
+                                    monitor.reset(now);
+                                } else if (stalled) {
+                                    throw new IOException("Download stalled");
+                                }
+                            }
+                        }
+                    } finally {
+                        // Remember what made it to disk, even if the download failed.
+                        // Don't hide why it failed if this fails too
+                        try {
+                            checkpoint(outputStream, journal);
+                        } catch (IOException e) {
+                            Log.e(TAG, "Could not update the journal of " + mDestination, e);
                         }
                     }
                     if (mProgressListener != null) {
                         mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta, true);
                     }
 
-                    outputStream.flush();
-
                     if (isInterrupted()) {
                         mCallback.onFailure(true);
                     } else {
+                        mDigest = digest.digest();
+                        if (journal != null) {
+                            journal.delete();
+                        }
                         mCallback.onSuccess(mDestination);
                     }
                 }
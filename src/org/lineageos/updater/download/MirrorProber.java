@@ -0,0 +1,401 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.download;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.lineageos.updater.misc.Metrics;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Rank download mirrors by fetching the beginning of the same file from each of them.
+ * Every phase of the request is timed separately: TCP connect, TLS handshake, time to
+ * the first byte of the response and the throughput of a short sample of the body.
+ */
+public class MirrorProber {
+
+    private static final String TAG = "MirrorProber";
+
+    private static final int SAMPLE_SIZE = 512 * 1024;
+    private static final int MAX_SAMPLE_MS = 3000;
+    private static final int MAX_REDIRECTS = 3;
+    private static final int MAX_HEADERS_SIZE = 32 * 1024;
+
+    // Used to turn the throughput into a time comparable with the latencies
+    private static final long REFERENCE_SIZE = 8 * 1024 * 1024;
+
+    public static class Result {
+        private final String mName;
+        private final String mUrl;
+        private long mConnectMillis;
+        private long mTlsMillis;
+        private long mFirstByteMillis;
+        private long mSampleBytes;
+        private long mSampleMillis;
+        private boolean mFailed;
+
+        private Result(String name, String url) {
+            mName = name;
+            mUrl = url;
+        }
+
+        private static Result failed(String name, String url) {
+            Result result = new Result(name, url);
+            result.mFailed = true;
+            return result;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public String getUrl() {
+            return mUrl;
+        }
+
+        /**
+         * Whether the mirror failed or didn't reply in time. The measurements of a
+         * failed mirror are all 0.
+         */
+        public boolean isFailed() {
+            return mFailed;
+        }
+
+        public long getConnectMillis() {
+            return mConnectMillis;
+        }
+
+        /**
+         * The duration of the TLS handshake, 0 for plain HTTP.
+         */
+        public long getTlsMillis() {
+            return mTlsMillis;
+        }
+
+        /**
+         * The time between sending the request and receiving the first byte of the
+         * response.
+         */
+        public long getFirstByteMillis() {
+            return mFirstByteMillis;
+        }
+
+        /**
+         * The throughput measured while reading the sample, in bytes per second.
+         */
+        public long getBytesPerSecond() {
+            return mSampleBytes * 1000 / Math.max(1, mSampleMillis);
+        }
+
+        /**
+         * The estimated time in milliseconds to fetch a download segment from this
+         * mirror, lower is better.
+         */
+        public double getScore() {
+            double transferMillis = mSampleBytes > 0 ?
+                    (double) REFERENCE_SIZE * Math.max(1, mSampleMillis) / mSampleBytes :
+                    Double.MAX_VALUE / 2;
+            return mConnectMillis + mTlsMillis + mFirstByteMillis + transferMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "%s: connect=%dms tls=%dms ttfb=%dms throughput=%dB/s score=%.0f",
+                    mName, mConnectMillis, mTlsMillis, mFirstByteMillis,
+                    getBytesPerSecond(), getScore());
+        }
+    }
+
+    private static class Probe {
+        private final Result mResult;
+        private final long mDeadline;
+        private volatile Socket mSocket;
+        private volatile boolean mAborted;
+
+        private Probe(Result result, long deadline) {
+            mResult = result;
+            mDeadline = deadline;
+        }
+
+        private Result run() throws IOException {
+            URL url = new URL(mResult.getUrl());
+            for (int i = 0; i <= MAX_REDIRECTS; i++) {
+                String location = request(url);
+                if (location == null) {
+                    return mResult;
+                }
+                url = new URL(url, location);
+                Log.d(TAG, mResult.getName() + " redirected to " + url);
+            }
+            throw new IOException("Too many redirects");
+        }
+
+        /**
+         * Time a ranged GET of the given URL.
+         *
+         * @return the redirect location, null if the sample was read
+         */
+        private String request(URL url) throws IOException {
+            boolean https = "https".equalsIgnoreCase(url.getProtocol());
+            if (!https && !"http".equalsIgnoreCase(url.getProtocol())) {
+                throw new MalformedURLException("Unsupported protocol " + url.getProtocol());
+            }
+            int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+
+            Socket socket = new Socket();
+            mSocket = socket;
+            if (mAborted) {
+                socket.close();
+                throw new IOException("Aborted");
+            }
+            try {
+                long start = SystemClock.elapsedRealtime();
+                socket.connect(new InetSocketAddress(url.getHost(), port), remaining());
+                long connected = SystemClock.elapsedRealtime();
+                mResult.mConnectMillis = connected - start;
+
+                if (https) {
+                    SSLSocket sslSocket = (SSLSocket) ((SSLSocketFactory)
+                            SSLSocketFactory.getDefault()).createSocket(socket,
+                            url.getHost(), port, true);
+                    SSLParameters parameters = sslSocket.getSSLParameters();
+                    parameters.setEndpointIdentificationAlgorithm("HTTPS");
+                    sslSocket.setSSLParameters(parameters);
+                    socket = sslSocket;
+                    mSocket = socket;
+                    socket.setSoTimeout(remaining());
+                    sslSocket.startHandshake();
+                    mResult.mTlsMillis = SystemClock.elapsedRealtime() - connected;
+                } else {
+                    mResult.mTlsMillis = 0;
+                }
+
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                String file = url.getFile().isEmpty() ? "/" : url.getFile();
+                String host = url.getPort() != -1 ? url.getHost() + ":" + port : url.getHost();
+                String request = "GET " + file + " HTTP/1.1\r\n" +
+                        "Host: " + host + "\r\n" +
+                        "Range: bytes=0-" + (SAMPLE_SIZE - 1) + "\r\n" +
+                        "Accept-Encoding: identity\r\n" +
+                        "Connection: close\r\n\r\n";
+                out.write(request.getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                long sent = SystemClock.elapsedRealtime();
+
+                InputStream in = socket.getInputStream();
+                socket.setSoTimeout(remaining());
+                int first = in.read();
+                if (first == -1) {
+                    throw new IOException("Empty response");
+                }
+                mResult.mFirstByteMillis = SystemClock.elapsedRealtime() - sent;
+
+                String headers = (char) first + readHeaders(in);
+                String statusLine = headers.substring(0, headers.indexOf("\r\n"));
+                String[] status = statusLine.split(" ", 3);
+                if (status.length < 2 || !status[0].startsWith("HTTP/")) {
+                    throw new IOException("Invalid status line " + statusLine);
+                }
+                int responseCode = Integer.parseInt(status[1]);
+                if (responseCode / 100 == 3) {
+                    String location = getHeader(headers, "Location");
+                    if (location == null) {
+                        throw new IOException("Redirect without location");
+                    }
+                    return location;
+                } else if (responseCode != 200 && responseCode != 206) {
+                    throw new IOException("Server replied with " + responseCode);
+                }
+
+                readSample(in);
+                return null;
+            } finally {
+                socket.close();
+            }
+        }
+
+        private String readHeaders(InputStream in) throws IOException {
+            StringBuilder headers = new StringBuilder();
+            int matched = 0;
+            while (matched < 4) {
+                int b = in.read();
+                if (b == -1) {
+                    throw new IOException("Truncated headers");
+                }
+                headers.append((char) b);
+                if (headers.length() > MAX_HEADERS_SIZE) {
+                    throw new IOException("Headers too long");
+                }
+                if (b == (matched % 2 == 0 ? '\r' : '\n')) {
+                    matched++;
+                } else {
+                    matched = b == '\r' ? 1 : 0;
+                }
+            }
+            return headers.toString();
+        }
+
+        private void readSample(InputStream in) throws IOException {
+            byte[] buffer = new byte[16 * 1024];
+            long start = SystemClock.elapsedRealtime();
+            long sampleDeadline = Math.min(mDeadline, start + MAX_SAMPLE_MS);
+            long read = 0;
+            try {
+                while (read < SAMPLE_SIZE) {
+                    long now = SystemClock.elapsedRealtime();
+                    if (now >= sampleDeadline) {
+                        break;
+                    }
+                    mSocket.setSoTimeout((int) (sampleDeadline - now));
+                    int count = in.read(buffer, 0,
+                            (int) Math.min(buffer.length, SAMPLE_SIZE - read));
+                    if (count == -1) {
+                        break;
+                    }
+                    read += count;
+                    mResult.mSampleBytes = read;
+                    mResult.mSampleMillis = SystemClock.elapsedRealtime() - start;
+                }
+            } catch (SocketTimeoutException e) {
+                // Slow mirror, rank it with what was read so far
+                mResult.mSampleMillis = SystemClock.elapsedRealtime() - start;
+            }
+            if (read == 0) {
+                throw new IOException("No data received");
+            }
+        }
+
+        private int remaining() throws SocketTimeoutException {
+            long remaining = mDeadline - SystemClock.elapsedRealtime();
+            if (remaining <= 0) {
+                throw new SocketTimeoutException("Deadline exceeded");
+            }
+            return (int) remaining;
+        }
+
+        private void abort() {
+            mAborted = true;
+            Socket socket = mSocket;
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Ignored
+                }
+            }
+        }
+    }
+
+    private MirrorProber() {
+    }
+
+    private static String getHeader(String headers, String name) {
+        for (String line : headers.split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase(name)) {
+                return line.substring(colon + 1).trim();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Probe all the given mirrors at the same time.
+     *
+     * @param mirrors mirror names mapped to the URL of the same file on each mirror
+     * @param timeoutMillis how long the whole ranking can take. Mirrors that don't
+     *                      reply in time are considered failed
+     * @return the results of all the mirrors, best first, the failed ones last
+     */
+    public static List<Result> rank(Map<String, String> mirrors, long timeoutMillis)
+            throws InterruptedException {
+        long deadline = SystemClock.elapsedRealtime() + timeoutMillis;
+        List<Result> results = new ArrayList<>();
+        if (mirrors.isEmpty()) {
+            return results;
+        }
+
+        Metrics.Timer timer = Metrics.beginSection("mirrors.rank_ms");
+        ExecutorService executor = Executors.newFixedThreadPool(mirrors.size());
+        List<Probe> probes = new ArrayList<>();
+        List<Future<Result>> futures = new ArrayList<>();
+        for (Map.Entry<String, String> mirror : mirrors.entrySet()) {
+            Probe probe = new Probe(new Result(mirror.getKey(), mirror.getValue()), deadline);
+            probes.add(probe);
+            futures.add(executor.submit(probe::run));
+        }
+        executor.shutdown();
+
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                String name = probes.get(i).mResult.getName();
+                String url = probes.get(i).mResult.getUrl();
+                try {
+                    long timeout = Math.max(0, deadline - SystemClock.elapsedRealtime());
+                    Result result = futures.get(i).get(timeout, TimeUnit.MILLISECONDS);
+                    Log.d(TAG, result.toString());
+                    results.add(result);
+                } catch (ExecutionException e) {
+                    Log.d(TAG, "Failed to probe mirror " + name, e.getCause());
+                    Metrics.increment("mirrors.probe_failed");
+                    results.add(Result.failed(name, url));
+                } catch (TimeoutException e) {
+                    Log.d(TAG, "Mirror " + name + " didn't reply in time");
+                    Metrics.increment("mirrors.probe_timeout");
+                    results.add(Result.failed(name, url));
+                }
+            }
+        } finally {
+            // Blocking socket operations can't be interrupted, close the sockets instead
+            for (Probe probe : probes) {
+                probe.abort();
+            }
+            executor.shutdownNow();
+            timer.stop();
+        }
+
+        results.sort(Comparator.comparing(Result::isFailed)
+                .thenComparingDouble(Result::getScore));
+        return results;
+    }
+}
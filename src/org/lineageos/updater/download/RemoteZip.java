@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.download;
+
+import org.lineageos.updater.misc.ZipIndex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+
+/**
+ * Read a zip file served over HTTP without downloading all of it. Only the central
+ * directory and the requested parts are fetched, with range requests.
+ */
+public class RemoteZip implements ZipIndex.Source {
+
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int READ_TIMEOUT_MS = 15000;
+
+    private final URL mUrl;
+    private final long mLength;
+    // The end of the file, fetched first to get its length
+    private final byte[] mTail;
+    private final long mTailOffset;
+    private ZipIndex mIndex;
+
+    private RemoteZip(URL url, long length, byte[] tail) {
+        mUrl = url;
+        mLength = length;
+        mTail = tail;
+        mTailOffset = length - tail.length;
+    }
+
+    /**
+     * Fetch the central directory of the given zip. The server must support range
+     * requests.
+     */
+    public static RemoteZip open(String url) throws IOException {
+        HttpURLConnection connection = connect(new URL(url), "bytes=-" + ZipIndex.TAIL_SIZE);
+        RemoteZip zip;
+        try {
+            long[] range = HttpURLConnectionClient.parseContentRange(
+                    connection.getHeaderField("Content-Range"));
+            if (range == null || range[1] < 0) {
+                throw new IOException("Missing total length in the reply of " + url);
+            }
+            long length = range[1];
+            if (range[0] != Math.max(0, length - ZipIndex.TAIL_SIZE)) {
+                throw new IOException("Unexpected range from " + url);
+            }
+            byte[] tail = readFully(connection, (int) (length - range[0]));
+            // Don't follow the redirects again for every request
+            zip = new RemoteZip(connection.getURL(), length, tail);
+        } finally {
+            connection.disconnect();
+        }
+        zip.mIndex = ZipIndex.read(zip);
+        return zip;
+    }
+
+    /**
+     * The URL of the zip after following the redirects.
+     */
+    public String getUrl() {
+        return mUrl.toString();
+    }
+
+    public ZipIndex getIndex() {
+        return mIndex;
+    }
+
+    @Override
+    public long length() {
+        return mLength;
+    }
+
+    @Override
+    public ByteBuffer read(long offset, int length) throws IOException {
+        if (offset >= mTailOffset && offset + length <= mLength) {
+            return ByteBuffer.wrap(mTail, (int) (offset - mTailOffset), length).slice();
+        }
+        if (length == 0) {
+            return ByteBuffer.allocate(0);
+        }
+        HttpURLConnection connection = connect(mUrl,
+                "bytes=" + offset + "-" + (offset + length - 1));
+        try {
+            long[] range = HttpURLConnectionClient.parseContentRange(
+                    connection.getHeaderField("Content-Range"));
+            if (range == null || range[0] != offset) {
+                throw new IOException("Unexpected range from " + mUrl);
+            }
+            return ByteBuffer.wrap(readFully(connection, length));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static HttpURLConnection connect(URL url, String range) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        connection.setRequestProperty("Range", range);
+        connection.connect();
+        int responseCode = connection.getResponseCode();
+        if (responseCode != HttpURLConnection.HTTP_PARTIAL) {
+            connection.disconnect();
+            throw new IOException("Server replied with " + responseCode +
+                    " to a partial content request");
+        }
+        return connection;
+    }
+
+    private static byte[] readFully(HttpURLConnection connection, int length)
+            throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream(length);
+        try (InputStream inputStream = connection.getInputStream()) {
+            byte[] buffer = new byte[8192];
+            int count;
+            while (data.size() < length && (count = inputStream.read(buffer, 0,
+                    Math.min(buffer.length, length - data.size()))) > 0) {
+                data.write(buffer, 0, count);
+            }
+        }
+        if (data.size() != length) {
+            throw new IOException("Expected " + length + " bytes, got " + data.size());
+        }
+        return data.toByteArray();
+    }
+}
@@ -0,0 +1,763 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.download;
+
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Download client that splits the file in byte ranges and fetches them in parallel
+ * into a preallocated destination. The ranges are handed out in order, so that the
+ * beginning of the file is completed first and can be hashed while downloading the
+ * rest. If the server doesn't advertise support for byte ranges, the download is
+ * delegated to a single stream HttpURLConnectionClient.
+ */
+public class SegmentedDownloadClient implements DownloadClient {
+
+    private final static String TAG = "SegmentedDownloadClient";
+
+    // Size of the ranges requested by each connection
+    private static final long SEGMENT_SIZE = 8 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int REPORT_INTERVAL_MS = 500;
+    // How often the completed ranges are synced and written to the journal
+    private static final int JOURNAL_INTERVAL_MS = 2000;
+    // How long to wait for more duplicate links once the first one replied
+    private static final long STRIPE_GRACE_MS = 1000;
+
+    private final String mUrl;
+    private final File mDestination;
+    private final DownloadClient.ProgressListener mProgressListener;
+    private final DownloadClient.DownloadCallback mCallback;
+    private final boolean mUseDuplicateLinks;
+    private final int mRaceDuplicateLinks;
+    private final int mSegmentCount;
+    private final Map<String, String> mRequestHeaders;
+    private final Deque<String> mFallbackMirrors;
+    private final DownloadClient.MirrorListener mMirrorListener;
+
+    private DownloadThread mDownloadThread;
+    private DownloadClient mFallbackClient;
+
+    private volatile String mDigest;
+
+    private static class Headers implements DownloadClient.Headers {
+        private final HttpURLConnection mConnection;
+
+        private Headers(HttpURLConnection connection) {
+            mConnection = connection;
+        }
+
+        @Override
+        public String get(String name) {
+            return mConnection.getHeaderField(name);
+        }
+
+        @Override
+        public Map<String, List<String>> getAll() {
+            return mConnection.getHeaderFields();
+        }
+    }
+
+    SegmentedDownloadClient(String url, File destination,
+            DownloadClient.ProgressListener progressListener,
+            DownloadClient.DownloadCallback callback,
+            boolean useDuplicateLinks, int raceDuplicateLinks, int segmentCount,
+            Map<String, String> requestHeaders, List<String> fallbackMirrors,
+            DownloadClient.MirrorListener mirrorListener) {
+        mUrl = url;
+        mDestination = destination;
+        mProgressListener = progressListener;
+        mCallback = callback;
+        mUseDuplicateLinks = useDuplicateLinks;
+        mRaceDuplicateLinks = raceDuplicateLinks;
+        mSegmentCount = segmentCount;
+        mRequestHeaders = requestHeaders;
+        mFallbackMirrors = new ArrayDeque<>(fallbackMirrors);
+        mMirrorListener = mirrorListener;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (mDownloadThread != null || mFallbackClient != null) {
+            Log.e(TAG, "Already downloading");
+            return;
+        }
+        mDownloadThread = new DownloadThread(false);
+        mDownloadThread.start();
+    }
+
+    @Override
+    public synchronized void resume() {
+        if (mDownloadThread != null || mFallbackClient != null) {
+            Log.e(TAG, "Already downloading");
+            return;
+        }
+        if (!mDestination.exists()) {
+            mCallback.onFailure(false);
+            return;
+        }
+        mDownloadThread = new DownloadThread(true);
+        mDownloadThread.start();
+    }
+
+    @Override
+    public synchronized void cancel() {
+        if (mFallbackClient != null) {
+            mFallbackClient.cancel();
+            mFallbackClient = null;
+            return;
+        }
+        if (mDownloadThread == null) {
+            Log.e(TAG, "Not downloading");
+            return;
+        }
+        mDownloadThread.interrupt();
+        mDownloadThread = null;
+    }
+
+    @Override
+    public synchronized String getDigest() {
+        if (mFallbackClient != null) {
+            return mFallbackClient.getDigest();
+        }
+        return mDigest;
+    }
+
+    private synchronized boolean startFallback(boolean resume) throws IOException {
+        if (mDownloadThread == null) {
+            // Cancelled while probing
+            return false;
+        }
+        mDownloadThread = null;
+        Log.d(TAG, "Byte ranges not supported, using a single connection");
+        // Downloads split in segments always keep a journal, keep it here too
+        mFallbackClient = new HttpURLConnectionClient(mUrl, mDestination, mProgressListener,
+                mCallback, mUseDuplicateLinks, mRaceDuplicateLinks, true, mRequestHeaders,
+                new ArrayList<>(mFallbackMirrors), mMirrorListener);
+        if (resume) {
+            mFallbackClient.resume();
+        } else {
+            mFallbackClient.start();
+        }
+        return true;
+    }
+
+    private static boolean isSuccessCode(int statusCode) {
+        return (statusCode / 100) == 2;
+    }
+
+    private static boolean isRedirectCode(int statusCode) {
+        return (statusCode / 100) == 3;
+    }
+
+    private static boolean isPartialContentCode(int statusCode) {
+        return statusCode == 206;
+    }
+
+    private static boolean acceptsRanges(HttpURLConnection connection) {
+        String acceptRanges = connection.getHeaderField("Accept-Ranges");
+        return acceptRanges != null && acceptRanges.toLowerCase().contains("bytes");
+    }
+
+    private static class Segment {
+        private final long mStart;
+        private final long mEnd;
+        private volatile long mWritten;
+        private volatile HttpURLConnection mConnection;
+
+        // Bytes written and synced to disk
+        private long mSynced;
+
+        private Segment(long start, long end) {
+            mStart = start;
+            mEnd = end;
+        }
+
+        private long length() {
+            return mEnd - mStart;
+        }
+    }
+
+    /**
+     * Digest of the beginning of the destination. The segments feed it what they write
+     * when it extends the hashed prefix, so that most of the file is hashed from memory.
+     * What was written ahead of the prefix is read back once the prefix reaches it.
+     */
+    private static class PrefixDigest {
+        private final Sha256 mSha256 = new Sha256();
+        private final List<Segment> mSegments;
+        private final long mTotal;
+        // The first segment that wasn't completely hashed
+        private int mFront;
+
+        private PrefixDigest(List<Segment> segments, long total) {
+            mSegments = segments;
+            mTotal = total;
+        }
+
+        /**
+         * Hash what was written to the destination at the given position, if the
+         * prefix can be extended up to it. Must be called before the bytes are
+         * counted as written by the segment.
+         */
+        private synchronized void update(FileChannel channel, byte[] b, int count,
+                long position) throws IOException {
+            long hashed = mSha256.getLength();
+            if (hashed < position) {
+                if (getWrittenEnd(hashed) < position) {
+                    // Something before is still being downloaded
+                    return;
+                }
+                mSha256.update(channel, position);
+                hashed = position;
+            }
+            if (hashed < position + count) {
+                int skip = (int) (hashed - position);
+                mSha256.update(b, skip, count - skip);
+            }
+        }
+
+        /**
+         * Hash whatever is left and complete the computation.
+         */
+        private synchronized String digest(FileChannel channel) throws IOException {
+            mSha256.update(channel, mTotal);
+            return mSha256.digest();
+        }
+
+        /**
+         * @return the end of what was written contiguously from the given position
+         */
+        private long getWrittenEnd(long position) {
+            while (mFront < mSegments.size() && mSegments.get(mFront).mEnd <= position) {
+                mFront++;
+            }
+            long end = position;
+            for (int i = mFront; i < mSegments.size(); i++) {
+                Segment segment = mSegments.get(i);
+                // What comes before the segment was already there when resuming
+                end = Math.max(end, segment.mStart + segment.mWritten);
+                if (segment.mWritten < segment.length()) {
+                    return end;
+                }
+            }
+            return mTotal;
+        }
+    }
+
+    private static void preallocate(RandomAccessFile file, long length) throws IOException {
+        try {
+            Os.posix_fallocate(file.getFD(), 0, length);
+        } catch (ErrnoException e) {
+            // Not supported by every filesystem, a sparse file is fine too
+            Log.w(TAG, "Could not preallocate the destination", e);
+        }
+        file.setLength(length);
+    }
+
+    private class DownloadThread extends Thread {
+
+        private long mTotalBytes = 0;
+        private long mTotalBytesRead = 0;
+
+        private long mCurSampleBytes = 0;
+        private long mLastMillis = 0;
+        private long mSpeed = -1;
+        private long mEta = -1;
+
+        private final boolean mResume;
+
+        // Interrupting the segments would close the channel they share
+        private volatile boolean mStopping;
+
+        // The URLs segments are currently fetched from
+        private volatile List<URL> mMirrors;
+        // Incremented when switching mirror, so that segments retry instead of failing
+        private volatile int mMirrorGeneration;
+
+        private PrefixDigest mPrefixDigest;
+
+        private DownloadThread(boolean resume) {
+            mResume = resume;
+        }
+
+        private void calculateSpeed() {
+            final long millis = SystemClock.elapsedRealtime();
+            final long delta = millis - mLastMillis;
+            if (delta > 500) {
+                final long curSpeed = ((mTotalBytesRead - mCurSampleBytes) * 1000) / delta;
+                if (mSpeed == -1) {
+                    mSpeed = curSpeed;
+                } else {
+                    mSpeed = ((mSpeed * 3) + curSpeed) / 4;
+                }
+
+                mLastMillis = millis;
+                mCurSampleBytes = mTotalBytesRead;
+            }
+        }
+
+        private void calculateEta() {
+            if (mSpeed > 0) {
+                mEta = (mTotalBytes - mTotalBytesRead) / mSpeed;
+            }
+        }
+
+        private void reportProgress(boolean done) {
+            calculateSpeed();
+            calculateEta();
+            if (mProgressListener != null) {
+                mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta, done);
+            }
+        }
+
+        private List<Segment> split(List<long[]> ranges) {
+            List<Segment> segments = new ArrayList<>();
+            for (long[] range : ranges) {
+                for (long start = range[0]; start < range[1]; start += SEGMENT_SIZE) {
+                    segments.add(new Segment(start, Math.min(start + SEGMENT_SIZE, range[1])));
+                }
+            }
+            return segments;
+        }
+
+        private void fetchSegment(int index, Segment segment, FileChannel channel)
+                throws IOException {
+            for (;;) {
+                int generation = mMirrorGeneration;
+                List<URL> mirrors = mMirrors;
+                try {
+                    fetchSegment(mirrors.get(index % mirrors.size()), segment, channel);
+                    return;
+                } catch (IOException e) {
+                    if (mStopping || generation == mMirrorGeneration) {
+                        throw e;
+                    }
+                    Log.d(TAG, "Mirror changed, resuming segment " + segment.mStart + "-" +
+                            segment.mEnd);
+                }
+            }
+        }
+
+        private void fetchSegment(URL url, Segment segment, FileChannel channel)
+                throws IOException {
+            if (mStopping) {
+                return;
+            }
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            segment.mConnection = connection;
+            try {
+                connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+                if (!mFallbackMirrors.isEmpty()) {
+                    // Leave time to switch mirror before giving up on a stalled segment
+                    connection.setReadTimeout(ThroughputMonitor.getStallTimeout() * 2);
+                }
+                connection.setRequestProperty("Accept-Encoding", "identity");
+                connection.setRequestProperty("Range", "bytes=" +
+                        (segment.mStart + segment.mWritten) + "-" + (segment.mEnd - 1));
+                connection.connect();
+                int responseCode = connection.getResponseCode();
+                if (!isPartialContentCode(responseCode)) {
+                    throw new IOException("Server replied with " + responseCode +
+                            " to a partial content request");
+                }
+
+                try (InputStream inputStream = connection.getInputStream()) {
+                    byte[] b = new byte[BUFFER_SIZE];
+                    ByteBuffer buffer = ByteBuffer.wrap(b);
+                    int count;
+                    while (segment.mWritten < segment.length() &&
+                            (count = inputStream.read(b, 0, (int) Math.min(b.length,
+                                    segment.length() - segment.mWritten))) > 0 &&
+                            !mStopping) {
+                        buffer.clear().limit(count);
+                        long position = segment.mStart + segment.mWritten;
+                        while (buffer.hasRemaining()) {
+                            position += channel.write(buffer, position);
+                        }
+                        mPrefixDigest.update(channel, b, count, position - count);
+                        segment.mWritten += count;
+                    }
+                }
+                if (segment.mWritten < segment.length() &&
+                        !mStopping) {
+                    throw new IOException("Segment " + segment.mStart + "-" + segment.mEnd +
+                            " ended prematurely");
+                }
+            } finally {
+                connection.disconnect();
+            }
+        }
+
+        /**
+         * Move the download to the next fallback mirror serving the same file. The
+         * connections of the segments are closed, they resume from the new mirror.
+         *
+         * @return whether the mirror was changed
+         */
+        private boolean switchToFallbackMirror(List<Segment> segments, long total) {
+            String url;
+            while ((url = mFallbackMirrors.poll()) != null) {
+                HttpURLConnection probe = null;
+                try {
+                    probe = openProbe(new URL(url));
+                    probe.connect();
+                    int responseCode = probe.getResponseCode();
+                    if (!isSuccessCode(responseCode)) {
+                        throw new IOException("Server replied with " + responseCode);
+                    } else if (probe.getContentLengthLong() != total || !acceptsRanges(probe)) {
+                        throw new IOException("Mirror doesn't serve the same file");
+                    }
+                    Log.d(TAG, "Speed collapsed, continuing from " + url);
+                    mMirrors = Collections.singletonList(probe.getURL());
+                    mMirrorGeneration++;
+                    for (Segment segment : segments) {
+                        HttpURLConnection connection = segment.mConnection;
+                        if (connection != null) {
+                            connection.disconnect();
+                        }
+                    }
+                    if (mMirrorListener != null) {
+                        mMirrorListener.onMirrorChanged(url);
+                    }
+                    return true;
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not switch to mirror " + url, e);
+                } finally {
+                    if (probe != null) {
+                        probe.disconnect();
+                    }
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void run() {
+            HttpURLConnection probe = null;
+            try {
+                boolean raceDuplicates = mUseDuplicateLinks && mRaceDuplicateLinks > 1;
+                probe = openProbe(new URL(mUrl));
+                probe.setInstanceFollowRedirects(!raceDuplicates);
+                probe.connect();
+                int responseCode = probe.getResponseCode();
+
+                List<URL> mirrors = new ArrayList<>();
+                if (raceDuplicates && isRedirectCode(responseCode)) {
+                    List<HttpURLConnection> healthy = raceDuplicateLinks(probe);
+                    probe.disconnect();
+                    if (healthy.isEmpty()) {
+                        probe = null;
+                        throw new IOException("None of the duplicate links replied");
+                    }
+                    probe = healthy.get(0);
+                    responseCode = probe.getResponseCode();
+                    for (HttpURLConnection connection : healthy) {
+                        // Only stripe across mirrors serving the very same file
+                        if (connection.getContentLengthLong() == probe.getContentLengthLong() &&
+                                acceptsRanges(connection)) {
+                            mirrors.add(connection.getURL());
+                        }
+                        if (connection != probe) {
+                            connection.disconnect();
+                        }
+                    }
+                }
+                long total = probe.getContentLengthLong();
+
+                if (!isSuccessCode(responseCode) || total <= 0 || !acceptsRanges(probe)) {
+                    probe.disconnect();
+                    probe = null;
+                    if (!startFallback(mResume)) {
+                        mCallback.onFailure(true);
+                    }
+                    return;
+                }
+
+                if (mirrors.isEmpty()) {
+                    mirrors.add(probe.getURL());
+                }
+                mCallback.onResponse(responseCode, probe.getURL().toString(),
+                        new Headers(probe));
+                probe.disconnect();
+                probe = null;
+                download(mirrors, total);
+            } catch (IOException e) {
+                Log.e(TAG, "Error downloading file", e);
+                mCallback.onFailure(isInterrupted());
+            } finally {
+                if (probe != null) {
+                    probe.disconnect();
+                }
+            }
+        }
+
+        private HttpURLConnection openProbe(URL url) throws IOException {
+            HttpURLConnection probe = (HttpURLConnection) url.openConnection();
+            for (Map.Entry<String, String> header : mRequestHeaders.entrySet()) {
+                probe.setRequestProperty(header.getKey(), header.getValue());
+            }
+            probe.setRequestMethod("HEAD");
+            probe.setRequestProperty("Accept-Encoding", "identity");
+            probe.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            return probe;
+        }
+
+        private List<HttpURLConnection> raceDuplicateLinks(HttpURLConnection redirect)
+                throws IOException {
+            String protocol = redirect.getURL().getProtocol();
+            List<String> links = new ArrayList<>();
+            links.add(redirect.getHeaderField("Location"));
+            links.addAll(DuplicateLinks.parse(redirect.getHeaderFields()));
+
+            List<URL> candidates = new ArrayList<>(mRaceDuplicateLinks);
+            for (String link : links) {
+                if (link == null) {
+                    continue;
+                }
+                URL url = new URL(link);
+                if (!url.getProtocol().equals(protocol)) {
+                    Log.d(TAG, "Ignoring duplicate link " + link + ", protocol changed");
+                    continue;
+                }
+                candidates.add(url);
+                if (candidates.size() == mRaceDuplicateLinks) {
+                    break;
+                }
+            }
+
+            Log.d(TAG, "Racing " + candidates.size() + " duplicate links");
+            try {
+                return DuplicateLinks.race(candidates, url -> {
+                    HttpURLConnection probe = openProbe(url);
+                    probe.connect();
+                    return probe;
+                }, STRIPE_GRACE_MS);
+            } catch (InterruptedException e) {
+                interrupt();
+                throw new InterruptedIOException("Interrupted while racing duplicate links");
+            }
+        }
+
+        private DownloadJournal loadJournal(long total) {
+            DownloadJournal journal = DownloadJournal.load(mDestination);
+            if (journal != null && journal.getTotalLength() != total) {
+                Log.d(TAG, "The remote file changed, starting over");
+                return null;
+            }
+            if (journal == null && DownloadJournal.exists(mDestination)) {
+                Log.d(TAG, "Discarding unreadable journal");
+            }
+            return journal;
+        }
+
+        private void download(List<URL> mirrors, long total) throws IOException {
+            DownloadJournal journal = null;
+            if (mResume) {
+                journal = loadJournal(total);
+                if (journal == null && !DownloadJournal.exists(mDestination)) {
+                    // Written in order by a client that didn't keep a journal
+                    long offset = mDestination.length();
+                    if (offset > total) {
+                        throw new IOException("The destination is bigger than the remote file");
+                    }
+                    journal = DownloadJournal.create(mDestination, total);
+                    journal.add(0, offset);
+                }
+            }
+            if (journal == null) {
+                journal = DownloadJournal.create(mDestination, total);
+            }
+            mTotalBytes = total;
+            mTotalBytesRead = journal.getCompletedBytes();
+            if (journal.isComplete()) {
+                try (RandomAccessFile file = new RandomAccessFile(mDestination, "r")) {
+                    mDigest = new PrefixDigest(Collections.emptyList(), total)
+                            .digest(file.getChannel());
+                }
+                reportProgress(true);
+                journal.delete();
+                mCallback.onSuccess(mDestination);
+                return;
+            }
+
+            List<Segment> segments = split(journal.getMissingRanges());
+            mPrefixDigest = new PrefixDigest(segments, total);
+            long offset = mTotalBytesRead;
+            Log.d(TAG, "Downloading " + (total - offset) + " bytes in " + segments.size() +
+                    " segments from " + mirrors);
+
+            ExecutorService executor = Executors.newFixedThreadPool(
+                    Math.min(segments.size(), mSegmentCount));
+            boolean cancelled = false;
+            boolean failed = false;
+            try (RandomAccessFile file = new RandomAccessFile(mDestination, "rw")) {
+                FileChannel channel = file.getChannel();
+                preallocate(file, total);
+                journal.save();
+
+                mMirrors = mirrors;
+                List<Future<?>> futures = new ArrayList<>(segments.size());
+                for (int i = 0; i < segments.size(); i++) {
+                    Segment segment = segments.get(i);
+                    int index = i;
+                    futures.add(executor.submit(() -> {
+                        fetchSegment(index, segment, channel);
+                        return null;
+                    }));
+                }
+                executor.shutdown();
+
+                long lastCheckpoint = SystemClock.elapsedRealtime();
+                ThroughputMonitor monitor = new ThroughputMonitor(lastCheckpoint);
+                while (!awaitSegments(executor)) {
+                    if (isInterrupted()) {
+                        cancelled = true;
+                    }
+                    for (Future<?> future : futures) {
+                        if (future.isDone() && !isSegmentSuccessful(future)) {
+                            failed = true;
+                        }
+                    }
+                    if (cancelled || failed) {
+                        stopSegments(segments);
+                    } else {
+                        updateBytesRead(offset, segments);
+                        reportProgress(false);
+                        long now = SystemClock.elapsedRealtime();
+                        if (now - lastCheckpoint >= JOURNAL_INTERVAL_MS) {
+                            checkpoint(file, journal, segments);
+                            lastCheckpoint = now;
+                        }
+                        if (!mFallbackMirrors.isEmpty() && monitor.update(mSpeed, now) &&
+                                switchToFallbackMirror(segments, total)) {
+                            monitor.reset(SystemClock.elapsedRealtime());
+                        }
+                    }
+                }
+
+                for (Future<?> future : futures) {
+                    failed |= !isSegmentSuccessful(future);
+                }
+                updateBytesRead(offset, segments);
+                reportProgress(true);
+
+                if (cancelled || failed || mTotalBytesRead < total) {
+                    // Keep track of what was written, only the rest will be downloaded
+                    // when resuming
+                    checkpoint(file, journal, segments);
+                    mCallback.onFailure(cancelled);
+                } else {
+                    file.getFD().sync();
+                    mDigest = mPrefixDigest.digest(channel);
+                    journal.delete();
+                    mCallback.onSuccess(mDestination);
+                }
+            } finally {
+                stopSegments(segments);
+                executor.shutdown();
+            }
+        }
+
+        private void checkpoint(RandomAccessFile file, DownloadJournal journal,
+                List<Segment> segments) throws IOException {
+            // Sample before syncing, anything written afterwards goes in the next one
+            long[] written = new long[segments.size()];
+            for (int i = 0; i < written.length; i++) {
+                written[i] = segments.get(i).mWritten;
+            }
+            // Unlike FileChannel.force(), this can't be interrupted
+            file.getFD().sync();
+            boolean changed = false;
+            for (int i = 0; i < written.length; i++) {
+                Segment segment = segments.get(i);
+                if (written[i] > segment.mSynced) {
+                    journal.add(segment.mStart, segment.mStart + written[i]);
+                    segment.mSynced = written[i];
+                    changed = true;
+                }
+            }
+            if (changed) {
+                journal.save();
+            }
+        }
+
+        private boolean awaitSegments(ExecutorService executor) {
+            try {
+                return executor.awaitTermination(REPORT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // Restore the flag, it's checked by the caller
+                interrupt();
+                return false;
+            }
+        }
+
+        private void stopSegments(List<Segment> segments) {
+            mStopping = true;
+            // Reads from the network aren't interruptible, close the sockets instead
+            for (Segment segment : segments) {
+                HttpURLConnection connection = segment.mConnection;
+                if (connection != null) {
+                    connection.disconnect();
+                }
+            }
+        }
+
+        private void updateBytesRead(long offset, List<Segment> segments) {
+            mTotalBytesRead = offset;
+            for (Segment segment : segments) {
+                mTotalBytesRead += segment.mWritten;
+            }
+        }
+
+        private boolean isSegmentSuccessful(Future<?> future) {
+            try {
+                future.get(0, TimeUnit.MILLISECONDS);
+                return true;
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Error downloading segment", e.getCause());
+                return false;
+            } catch (Exception e) {
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.download;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 of the beginning of a file, keeping track of how much of it was hashed.
+ */
+class Sha256 {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final MessageDigest mDigest;
+    private long mLength;
+
+    Sha256() {
+        try {
+            mDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every implementation of the platform is required to support it
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * The number of bytes hashed so far.
+     */
+    long getLength() {
+        return mLength;
+    }
+
+    void update(byte[] input, int offset, int length) {
+        mDigest.update(input, offset, length);
+        mLength += length;
+    }
+
+    /**
+     * Hash the given file from {@link #getLength()} up to the given position.
+     */
+    void update(FileChannel channel, long end) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE,
+                Math.max(end - mLength, 0)));
+        while (mLength < end) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), end - mLength));
+            int count = channel.read(buffer, mLength);
+            if (count < 0) {
+                throw new IOException("The file is shorter than expected");
+            }
+            update(buffer.array(), 0, count);
+        }
+    }
+
+    /**
+     * Complete the computation. The digest can't be updated afterwards.
+     *
+     * @return the digest as lowercase hex string
+     */
+    String digest() {
+        StringBuilder sb = new StringBuilder(64);
+        for (byte b : mDigest.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
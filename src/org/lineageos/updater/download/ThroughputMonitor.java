@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.download;
+
+/**
+ * Detect when the speed of a download collapses. The expected rate is the best
+ * average speed reached since the download started from the current mirror.
+ */
+class ThroughputMonitor {
+
+    // Let the connection ramp up before trusting the speed
+    private static final long WARMUP_MS = 5000;
+    // How long the speed has to stay low before giving up on the mirror
+    private static final long COLLAPSE_MS = 15000;
+    // Fraction of the expected rate under which the speed is considered collapsed
+    private static final int COLLAPSE_PERCENT = 20;
+
+    private long mStartMillis;
+    private long mExpectedSpeed;
+    private long mSlowSinceMillis;
+
+    ThroughputMonitor(long now) {
+        reset(now);
+    }
+
+    /**
+     * Start over, e.g. after switching mirror.
+     */
+    void reset(long now) {
+        mStartMillis = now;
+        mExpectedSpeed = 0;
+        mSlowSinceMillis = -1;
+    }
+
+    /**
+     * Feed the current average speed.
+     *
+     * @return whether the speed has been too low for too long
+     */
+    boolean update(long speed, long now) {
+        if (speed > mExpectedSpeed) {
+            mExpectedSpeed = speed;
+        }
+        if (speed < 0 || now - mStartMillis < WARMUP_MS) {
+            return false;
+        }
+        if (speed * 100 >= mExpectedSpeed * COLLAPSE_PERCENT) {
+            mSlowSinceMillis = -1;
+            return false;
+        }
+        if (mSlowSinceMillis < 0) {
+            mSlowSinceMillis = now;
+        }
+        return now - mSlowSinceMillis >= COLLAPSE_MS;
+    }
+
+    /**
+     * How long reads can block before the connection is considered stalled.
+     */
+    static int getStallTimeout() {
+        return (int) COLLAPSE_MS;
+    }
+}
@@ -38,9 +38,13 @@ public final class Constants {
     public static final String PREF_AUTO_UPDATES_CHECK_INTERVAL = "auto_updates_check_interval";
     public static final String PREF_AUTO_DELETE_UPDATES = "auto_delete_updates";
     public static final String PREF_AB_PERF_MODE = "ab_perf_mode";
+    public static final String PREF_AB_STREAMING = "ab_streaming";
     public static final String PREF_MOBILE_DATA_WARNING = "pref_mobile_data_warning";
     public static final String PREF_NEEDS_REBOOT_ID = "needs_reboot_id";
     public static final String PREF_RANK_SORT = "rank_sort";
+    public static final String PREF_UPDATES_LIST_URL = "updates_list_url";
+    public static final String PREF_UPDATES_LIST_ETAG = "updates_list_etag";
+    public static final String PREF_UPDATES_LIST_LAST_MODIFIED = "updates_list_last_modified";
 
     public static final String UNCRYPT_FILE_EXT = ".uncrypt";
 
@@ -61,4 +65,5 @@ public final class Constants {
     public static final String PREF_INSTALL_PACKAGE_PATH = "install_package_path";
     public static final String PREF_INSTALL_AGAIN = "install_again";
     public static final String PREF_INSTALL_NOTIFIED = "install_notified";
+    public static final String PREF_INSTALL_UNCRYPT_BOOT_COUNT = "install_uncrypt_boot_count";
 }
@@ -21,67 +21,44 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.channels.ReadableByteChannel;
 
 public class FileUtils {
 
     private static final String TAG = "FileUtils";
 
+    // Bytes copied by each transfer, progress is reported in between
+    private static final long TRANSFER_CHUNK_SIZE = 8 * 1024 * 1024;
+
     public interface ProgressCallBack {
         void update(int progress);
     }
 
-    private static class CallbackByteChannel implements ReadableByteChannel {
-        private ProgressCallBack mCallback;
-        private long mSize;
-        private ReadableByteChannel mReadableByteChannel;
-        private long mSizeRead;
-        private int mProgress;
-
-        private CallbackByteChannel(ReadableByteChannel readableByteChannel, long expectedSize,
-                ProgressCallBack callback) {
-            this.mCallback = callback;
-            this.mSize = expectedSize;
-            this.mReadableByteChannel = readableByteChannel;
-        }
-
-        @Override
-        public void close() throws IOException {
-            mReadableByteChannel.close();
-        }
-
-        @Override
-        public boolean isOpen() {
-            return mReadableByteChannel.isOpen();
-        }
-
-        @Override
-        public int read(ByteBuffer bb) throws IOException {
-            int read;
-            if ((read = mReadableByteChannel.read(bb)) > 0) {
-                mSizeRead += read;
-                int progress = mSize > 0 ? Math.round(mSizeRead * 100.f / mSize) : -1;
-                if (mProgress != progress) {
-                    mCallback.update(progress);
-                    mProgress = progress;
-                }
-            }
-            return read;
-        }
-    }
-
+    /**
+     * Copy the file with channel transfers, which let the kernel copy the data
+     * without going through the Java heap. The copy stops early, leaving a partial
+     * destination, if the thread is interrupted.
+     */
     public static void copyFile(File sourceFile, File destFile, ProgressCallBack progressCallBack)
             throws IOException {
         try (FileChannel sourceChannel = new FileInputStream(sourceFile).getChannel();
              FileChannel destChannel = new FileOutputStream(destFile).getChannel()) {
-            if (progressCallBack != null) {
-                ReadableByteChannel readableByteChannel = new CallbackByteChannel(sourceChannel,
-                        sourceFile.length(), progressCallBack);
-                destChannel.transferFrom(readableByteChannel, 0, sourceChannel.size());
-            } else {
-                destChannel.transferFrom(sourceChannel, 0, sourceChannel.size());
+            long size = sourceChannel.size();
+            long position = 0;
+            int lastProgress = 0;
+            while (position < size && !Thread.currentThread().isInterrupted()) {
+                long count = Math.min(TRANSFER_CHUNK_SIZE, size - position);
+                long transferred = sourceChannel.transferTo(position, count, destChannel);
+                if (transferred <= 0) {
+                    throw new IOException("Could not transfer from " + sourceFile + " at " +
+                            position);
+                }
+                position += transferred;
+                int progress = Math.round(position * 100.f / size);
+                if (progressCallBack != null && progress != lastProgress) {
+                    progressCallBack.update(progress);
+                    lastProgress = progress;
+                }
             }
         } catch (IOException e) {
             Log.e(TAG, "Could not copy file", e);
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.misc;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counters and histograms of the app process, along with the trace sections of the
+ * timed operations. Everything is kept in memory and can be printed with dumpsys or
+ * written to {@link #DUMP_FILE_NAME} in the files directory.
+ */
+public final class Metrics {
+
+    private static final String TAG = "Metrics";
+
+    public static final String DUMP_FILE_NAME = "metrics.txt";
+
+    // Names of the trace sections are truncated past this length
+    private static final int MAX_SECTION_NAME_LENGTH = 127;
+
+    private static final Object sLock = new Object();
+    private static final Map<String, Long> sCounters = new TreeMap<>();
+    private static final Map<String, Histogram> sHistograms = new TreeMap<>();
+    private static final AtomicInteger sNextCookie = new AtomicInteger();
+    private static final long sStartMillis = SystemClock.elapsedRealtime();
+
+    /**
+     * Distribution of the recorded values. Values are counted in power of two buckets,
+     * which is enough to tell a regression from noise.
+     */
+    private static class Histogram {
+        private final long[] mBuckets = new long[Long.SIZE];
+        private long mCount;
+        private long mSum;
+        private long mMin = Long.MAX_VALUE;
+        private long mMax = Long.MIN_VALUE;
+
+        private void add(long value) {
+            value = Math.max(0, value);
+            mBuckets[Long.SIZE - Long.numberOfLeadingZeros(value) - (value > 0 ? 1 : 0)]++;
+            mCount++;
+            mSum += value;
+            mMin = Math.min(mMin, value);
+            mMax = Math.max(mMax, value);
+        }
+
+        /**
+         * @return an upper bound of the given percentile
+         */
+        private long percentile(int percent) {
+            long rank = (mCount * percent + 99) / 100;
+            long seen = 0;
+            for (int i = 0; i < mBuckets.length; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank) {
+                    return Math.min(mMax, i == 0 ? 1 : (1L << (i + 1)) - 1);
+                }
+            }
+            return mMax;
+        }
+    }
+
+    /**
+     * A running timer. The elapsed time is recorded, in milliseconds, in the histogram
+     * with the name of the timer when stopped.
+     */
+    public static final class Timer {
+        private final String mName;
+        private final int mCookie;
+        private final long mStartNanos;
+        private boolean mStopped;
+
+        private Timer(String name, int cookie) {
+            mName = name;
+            mCookie = cookie;
+            mStartNanos = SystemClock.elapsedRealtimeNanos();
+        }
+
+        /**
+         * @return the elapsed time in milliseconds
+         */
+        public long stop() {
+            long elapsed = (SystemClock.elapsedRealtimeNanos() - mStartNanos) / 1000000;
+            if (end()) {
+                record(mName, elapsed);
+            }
+            return elapsed;
+        }
+
+        /**
+         * Stop without recording, e.g. when the operation was interrupted.
+         */
+        public void cancel() {
+            end();
+        }
+
+        private boolean end() {
+            synchronized (this) {
+                if (mStopped) {
+                    return false;
+                }
+                mStopped = true;
+            }
+            if (mCookie < 0) {
+                Trace.endSection();
+            } else {
+                Trace.endAsyncSection(sectionName(mName), mCookie);
+            }
+            return true;
+        }
+    }
+
+    private Metrics() {
+    }
+
+    private static String sectionName(String name) {
+        return name.length() > MAX_SECTION_NAME_LENGTH ?
+                name.substring(0, MAX_SECTION_NAME_LENGTH) : name;
+    }
+
+    /**
+     * Start a timer along with a trace section. It must be stopped on the same
+     * thread, sections started after it must be stopped before.
+     */
+    public static Timer beginSection(String name) {
+        Trace.beginSection(sectionName(name));
+        return new Timer(name, -1);
+    }
+
+    /**
+     * Start a timer that can be stopped on any thread.
+     */
+    public static Timer beginAsyncSection(String name) {
+        int cookie = sNextCookie.getAndIncrement() & Integer.MAX_VALUE;
+        Trace.beginAsyncSection(sectionName(name), cookie);
+        return new Timer(name, cookie);
+    }
+
+    public static void increment(String name) {
+        add(name, 1);
+    }
+
+    public static void add(String name, long delta) {
+        synchronized (sLock) {
+            Long value = sCounters.get(name);
+            sCounters.put(name, value != null ? value + delta : delta);
+        }
+    }
+
+    public static void record(String name, long value) {
+        synchronized (sLock) {
+            Histogram histogram = sHistograms.get(name);
+            if (histogram == null) {
+                histogram = new Histogram();
+                sHistograms.put(name, histogram);
+            }
+            histogram.add(value);
+        }
+    }
+
+    /**
+     * Record the value and show it as a counter in the traces.
+     */
+    public static void recordCounter(String name, long value) {
+        Trace.setCounter(sectionName(name), value);
+        record(name, value);
+    }
+
+    public static void dump(PrintWriter pw) {
+        pw.println("build: " + BuildInfoUtils.getBuildVersion() + " " +
+                BuildInfoUtils.getBuildDateTimestamp());
+        pw.println("uptime_ms: " + (SystemClock.elapsedRealtime() - sStartMillis));
+        synchronized (sLock) {
+            pw.println("counters:");
+            for (Map.Entry<String, Long> entry : sCounters.entrySet()) {
+                pw.println("  " + entry.getKey() + ": " + entry.getValue());
+            }
+            pw.println("histograms:");
+            for (Map.Entry<String, Histogram> entry : sHistograms.entrySet()) {
+                Histogram histogram = entry.getValue();
+                pw.println("  " + entry.getKey() + ":" +
+                        " count=" + histogram.mCount +
+                        " min=" + histogram.mMin +
+                        " avg=" + histogram.mSum / histogram.mCount +
+                        " p50<=" + histogram.percentile(50) +
+                        " p90<=" + histogram.percentile(90) +
+                        " p99<=" + histogram.percentile(99) +
+                        " max=" + histogram.mMax);
+            }
+        }
+    }
+
+    /**
+     * Write what {@link #dump(PrintWriter)} prints to the dump file.
+     */
+    public static void writeDumpFile(Context context) {
+        File file = new File(context.getFilesDir(), DUMP_FILE_NAME);
+        File tmp = new File(file.getAbsolutePath() + ".tmp");
+        try (PrintWriter pw = new PrintWriter(new FileOutputStream(tmp))) {
+            dump(pw);
+            if (pw.checkError()) {
+                throw new IOException("Write error");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write " + tmp, e);
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            Log.e(TAG, "Could not rename " + tmp);
+            tmp.delete();
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.misc;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.lineageos.updater.UpdatesDbHelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * What the app needs to know about a downloaded package. It's read from the zip once,
+ * when the download is verified, and stored in the database along with the size and
+ * modification time of the file, so that it's read again only if the file changed.
+ */
+public final class PackageMetadata {
+
+    private static final String TAG = "PackageMetadata";
+
+    // Guarded by itself
+    private static final Map<String, PackageMetadata> sCache = new HashMap<>();
+
+    private final String mPath;
+    private final long mSize;
+    private final long mLastModified;
+    private final String mSha256;
+    private final boolean mABUpdate;
+    private final long mPayloadOffset;
+    private final long mPayloadSize;
+    private final String[] mPayloadProperties;
+
+    public PackageMetadata(String path, long size, long lastModified, String sha256,
+            boolean abUpdate, long payloadOffset, long payloadSize,
+            String[] payloadProperties) {
+        mPath = path;
+        mSize = size;
+        mLastModified = lastModified;
+        mSha256 = sha256;
+        mABUpdate = abUpdate;
+        mPayloadOffset = payloadOffset;
+        mPayloadSize = payloadSize;
+        mPayloadProperties = payloadProperties;
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    public long getSize() {
+        return mSize;
+    }
+
+    public long getLastModified() {
+        return mLastModified;
+    }
+
+    /**
+     * @return the SHA-256 of the file as lowercase hex string, null if not known
+     */
+    public String getSha256() {
+        return mSha256;
+    }
+
+    public boolean isABUpdate() {
+        return mABUpdate;
+    }
+
+    /**
+     * @return the offset of the A/B payload in the zip, -1 if there's no payload or
+     * if it's compressed
+     */
+    public long getPayloadOffset() {
+        return mPayloadOffset;
+    }
+
+    public long getPayloadSize() {
+        return mPayloadSize;
+    }
+
+    /**
+     * @return the non-empty lines of payload_properties.txt, empty if not an A/B update
+     */
+    public String[] getPayloadProperties() {
+        return mPayloadProperties.clone();
+    }
+
+    private boolean isValidFor(File file) {
+        return file.length() == mSize && file.lastModified() == mLastModified;
+    }
+
+    /**
+     * Read the metadata from the index of a zip.
+     *
+     * @param path where the zip was read from
+     */
+    public static PackageMetadata read(ZipIndex index, String path, long size,
+            long lastModified, String sha256) throws IOException {
+        if (!Utils.isABUpdate(index)) {
+            return new PackageMetadata(path, size, lastModified, sha256, false, -1, 0,
+                    new String[0]);
+        }
+        ZipIndex.Entry payload = index.getEntry(Constants.AB_PAYLOAD_BIN_PATH);
+        // update_engine reads the payload as is
+        long payloadOffset = payload.getMethod() == ZipIndex.METHOD_STORED ?
+                index.getDataOffset(payload) : -1;
+        ZipIndex.Entry properties = index.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH);
+        List<String> lines = new ArrayList<>();
+        for (String line : new String(index.read(properties), StandardCharsets.UTF_8)
+                .split("\n")) {
+            if (!line.trim().isEmpty()) {
+                lines.add(line.trim());
+            }
+        }
+        return new PackageMetadata(path, size, lastModified, sha256, true, payloadOffset,
+                payload.getSize(), lines.toArray(new String[0]));
+    }
+
+    private static PackageMetadata read(File file, String sha256) throws IOException {
+        // Taken first, so that a change made while reading makes the record stale
+        long size = file.length();
+        long lastModified = file.lastModified();
+        return read(ZipIndex.get(file), file.getAbsolutePath(), size, lastModified, sha256);
+    }
+
+    /**
+     * Read the metadata of the given file and store it.
+     *
+     * @param sha256 the digest of the file if known, it's not computed here
+     */
+    public static PackageMetadata update(Context context, File file, String sha256)
+            throws IOException {
+        PackageMetadata metadata = read(file,
+                sha256 != null ? sha256.toLowerCase(Locale.ROOT) : null);
+        UpdatesDbHelper.getInstance(context).upsertPackageMetadata(metadata);
+        synchronized (sCache) {
+            sCache.put(metadata.mPath, metadata);
+        }
+        return metadata;
+    }
+
+    /**
+     * Get the metadata of the given file, reading it from the file only if what was
+     * stored is missing or outdated.
+     */
+    public static PackageMetadata get(Context context, File file) throws IOException {
+        PackageMetadata metadata = getStored(context, file);
+        if (metadata != null) {
+            return metadata;
+        }
+        String path = file.getAbsolutePath();
+        if (!file.exists()) {
+            remove(context, file);
+            throw new IOException(path + " doesn't exist");
+        }
+        Log.d(TAG, "Reading the metadata of " + path);
+        // The digest was of the previous content
+        return update(context, file, null);
+    }
+
+    /**
+     * Get the digest stored for the given file, without reading it.
+     *
+     * @return the digest as lowercase hex string, null if not known or if the file
+     * changed since it was stored
+     */
+    public static String getSha256(Context context, File file) {
+        PackageMetadata metadata = getStored(context, file);
+        return metadata != null ? metadata.mSha256 : null;
+    }
+
+    private static PackageMetadata getStored(Context context, File file) {
+        String path = file.getAbsolutePath();
+        PackageMetadata metadata;
+        synchronized (sCache) {
+            metadata = sCache.get(path);
+        }
+        if (metadata == null) {
+            metadata = UpdatesDbHelper.getInstance(context).getPackageMetadata(path);
+        }
+        if (metadata == null || !metadata.isValidFor(file)) {
+            return null;
+        }
+        synchronized (sCache) {
+            sCache.put(path, metadata);
+        }
+        return metadata;
+    }
+
+    public static void remove(Context context, File file) {
+        String path = file.getAbsolutePath();
+        synchronized (sCache) {
+            sCache.remove(path);
+        }
+        UpdatesDbHelper.getInstance(context).removePackageMetadata(path);
+    }
+}
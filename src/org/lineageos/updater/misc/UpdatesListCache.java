@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.misc;
+
+import android.util.Log;
+
+import org.lineageos.updater.model.UpdateInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compatible updates parsed from the updates lists, shared by the activity and the
+ * periodic check so that each version of a list is parsed only once. An entry is
+ * reused as long as the size and the modification time of the file don't change.
+ */
+public final class UpdatesListCache {
+
+    private static final String TAG = "UpdatesListCache";
+
+    // The current list plus the one being downloaded
+    private static final int MAX_ENTRIES = 4;
+
+    private static final Map<String, Entry> sEntries =
+            new LinkedHashMap<String, Entry>(MAX_ENTRIES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    private static class Entry {
+        private final long mLength;
+        private final long mLastModified;
+        private final List<UpdateInfo> mUpdates;
+        private final Set<String> mIds;
+
+        private Entry(long length, long lastModified, List<UpdateInfo> updates) {
+            mLength = length;
+            mLastModified = lastModified;
+            mUpdates = Collections.unmodifiableList(updates);
+            Set<String> ids = new HashSet<>();
+            for (UpdateInfo update : updates) {
+                ids.add(update.getDownloadId());
+            }
+            mIds = Collections.unmodifiableSet(ids);
+        }
+
+        private boolean isValidFor(File file) {
+            return mLength == file.length() && mLastModified == file.lastModified();
+        }
+    }
+
+    private UpdatesListCache() {
+    }
+
+    /**
+     * Get the compatible updates listed in the given file. The returned list must
+     * not be modified.
+     */
+    public static List<UpdateInfo> getUpdates(File file) throws IOException {
+        return get(file).mUpdates;
+    }
+
+    /**
+     * Get the ids of the compatible updates listed in the given file.
+     */
+    public static Set<String> getIds(File file) throws IOException {
+        return get(file).mIds;
+    }
+
+    /**
+     * Rename the given list, keeping what was parsed from it.
+     *
+     * @return true if the file was renamed
+     */
+    public static boolean rename(File from, File to) {
+        synchronized (sEntries) {
+            Entry entry = sEntries.remove(from.getAbsolutePath());
+            sEntries.remove(to.getAbsolutePath());
+            if (!from.renameTo(to)) {
+                return false;
+            }
+            // A rename doesn't change the size nor the modification time
+            if (entry != null && entry.isValidFor(to)) {
+                sEntries.put(to.getAbsolutePath(), entry);
+            }
+            return true;
+        }
+    }
+
+    private static Entry get(File file) throws IOException {
+        String key = file.getAbsolutePath();
+        long length = file.length();
+        long lastModified = file.lastModified();
+        synchronized (sEntries) {
+            Entry entry = sEntries.get(key);
+            if (entry != null && entry.isValidFor(file)) {
+                return entry;
+            }
+        }
+
+        Log.d(TAG, "Parsing " + file);
+        Entry entry = new Entry(length, lastModified, Utils.parseJson(file, true));
+        synchronized (sEntries) {
+            // Don't cache what was parsed if the file changed in the meantime
+            if (entry.isValidFor(file)) {
+                sEntries.put(key, entry);
+            }
+        }
+        return entry;
+    }
+}
@@ -28,36 +28,41 @@ import android.os.Environment;
 import android.os.SystemProperties;
 import android.os.storage.StorageManager;
 import android.preference.PreferenceManager;
+import android.provider.Settings;
+import android.util.JsonReader;
+import android.util.JsonToken;
 import android.util.Log;
 import android.widget.Toast;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.lineageos.updater.R;
 import org.lineageos.updater.UpdatesDbHelper;
 import org.lineageos.updater.controller.UpdaterService;
+import org.lineageos.updater.download.DownloadClient;
+import org.lineageos.updater.download.DownloadJournal;
 import org.lineageos.updater.model.Update;
 import org.lineageos.updater.model.UpdateBaseInfo;
 import org.lineageos.updater.model.UpdateInfo;
+import org.lineageos.updater.model.UpdateStatus;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.ArrayList;
-import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Set;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 public class Utils {
 
     private static final String TAG = "Utils";
 
+    private static final List<String> REQUIRED_UPDATE_FIELDS = Arrays.asList(
+            "datetime", "filename", "id", "romtype", "size", "url", "version");
+
     private Utils() {
     }
 
@@ -80,18 +85,92 @@ public class Utils {
         return new File(context.getCacheDir(), "updates.json");
     }
 
+    /**
+     * Make the request of the updates list conditional, so that the server can reply
+     * with 304 Not Modified if the cached list is still valid.
+     */
+    public static void addUpdatesListValidators(Context context, String url,
+            DownloadClient.Builder builder) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        if (!url.equals(preferences.getString(Constants.PREF_UPDATES_LIST_URL, null)) ||
+                !getCachedUpdateList(context).exists()) {
+            return;
+        }
+        String etag = preferences.getString(Constants.PREF_UPDATES_LIST_ETAG, null);
+        String lastModified = preferences.getString(
+                Constants.PREF_UPDATES_LIST_LAST_MODIFIED, null);
+        if (etag != null) {
+            builder.addRequestHeader("If-None-Match", etag);
+        }
+        if (lastModified != null) {
+            builder.addRequestHeader("If-Modified-Since", lastModified);
+        }
+    }
+
+    /**
+     * Store the validators of the updates list that was just cached.
+     */
+    public static void saveUpdatesListValidators(Context context, String url, String etag,
+            String lastModified) {
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putString(Constants.PREF_UPDATES_LIST_URL, url)
+                .putString(Constants.PREF_UPDATES_LIST_ETAG, etag)
+                .putString(Constants.PREF_UPDATES_LIST_LAST_MODIFIED, lastModified)
+                .apply();
+    }
+
     // This should really return an UpdateBaseInfo object, but currently this only
     // used to initialize UpdateInfo objects
-    private static UpdateInfo parseJsonUpdate(JSONObject object) throws JSONException {
+    private static UpdateInfo parseJsonUpdate(JsonReader reader) throws IOException {
         Update update = new Update();
-        update.setTimestamp(object.getLong("datetime"));
-        update.setName(object.getString("filename"));
-        update.setDownloadId(object.getString("id"));
-        update.setType(object.getString("romtype"));
-        update.setFileSize(object.getLong("size"));
-        update.setDownloadUrl(object.getString("url"));
-        update.setVersion(object.getString("version"));
-        return update;
+        Set<String> fields = new HashSet<>();
+        boolean valid = true;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+                continue;
+            }
+            try {
+                switch (name) {
+                    case "datetime":
+                        update.setTimestamp(reader.nextLong());
+                        break;
+                    case "filename":
+                        update.setName(reader.nextString());
+                        break;
+                    case "id":
+                        update.setDownloadId(reader.nextString());
+                        break;
+                    case "romtype":
+                        update.setType(reader.nextString());
+                        break;
+                    case "size":
+                        update.setFileSize(reader.nextLong());
+                        break;
+                    case "url":
+                        update.setDownloadUrl(reader.nextString());
+                        break;
+                    case "version":
+                        update.setVersion(reader.nextString());
+                        break;
+                    case "sha256":
+                        update.setSha256(reader.nextString());
+                        break;
+                    default:
+                        reader.skipValue();
+                        continue;
+                }
+                fields.add(name);
+            } catch (IllegalStateException | NumberFormatException e) {
+                Log.e(TAG, "Invalid value for " + name, e);
+                reader.skipValue();
+                valid = false;
+            }
+        }
+        reader.endObject();
+        return valid && fields.containsAll(REQUIRED_UPDATE_FIELDS) ? update : null;
     }
 
     public static boolean isCompatible(UpdateBaseInfo update) {
@@ -120,35 +199,51 @@ public class Utils {
     }
 
     public static List<UpdateInfo> parseJson(File file, boolean compatibleOnly)
-            throws IOException, JSONException {
+            throws IOException {
         List<UpdateInfo> updates = new ArrayList<>();
-
-        String json = "";
-        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-            for (String line; (line = br.readLine()) != null;) {
-                json += line;
+        Metrics.Timer timer = Metrics.beginSection("updates_list.parse_ms");
+        try (JsonReader reader = new JsonReader(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if ("response".equals(reader.nextName())) {
+                    parseJsonUpdates(reader, compatibleOnly, updates);
+                    return updates;
+                }
+                reader.skipValue();
             }
+        } catch (IllegalStateException e) {
+            throw new IOException("Unexpected content in " + file, e);
+        } finally {
+            timer.stop();
         }
+        throw new IOException("No updates list in " + file);
+    }
 
-        JSONObject obj = new JSONObject(json);
-        JSONArray updatesList = obj.getJSONArray("response");
-        for (int i = 0; i < updatesList.length(); i++) {
-            if (updatesList.isNull(i)) {
+    private static void parseJsonUpdates(JsonReader reader, boolean compatibleOnly,
+            List<UpdateInfo> updates) throws IOException {
+        reader.beginArray();
+        for (int i = 0; reader.hasNext(); i++) {
+            JsonToken token = reader.peek();
+            if (token == JsonToken.NULL) {
+                reader.skipValue();
                 continue;
             }
-            try {
-                UpdateInfo update = parseJsonUpdate(updatesList.getJSONObject(i));
-                if (!compatibleOnly || isCompatible(update)) {
-                    updates.add(update);
-                } else {
-                    Log.d(TAG, "Ignoring incompatible update " + update.getName());
-                }
-            } catch (JSONException e) {
-                Log.e(TAG, "Could not parse update object, index=" + i, e);
+            UpdateInfo update = null;
+            if (token == JsonToken.BEGIN_OBJECT) {
+                update = parseJsonUpdate(reader);
+            } else {
+                reader.skipValue();
+            }
+            if (update == null) {
+                Log.e(TAG, "Could not parse update object, index=" + i);
+            } else if (!compatibleOnly || isCompatible(update)) {
+                updates.add(update);
+            } else {
+                Log.d(TAG, "Ignoring incompatible update " + update.getName());
             }
         }
-
-        return updates;
+        reader.endArray();
     }
 
     public static String getArrowDownloadUrl(Context context) {
@@ -215,20 +310,14 @@ public class Utils {
      * @param newJson new update list
      * @return true if newJson has at least a compatible update not available in oldJson
      * @throws IOException
-     * @throws JSONException
      */
     public static boolean checkForNewUpdates(File oldJson, File newJson)
-            throws IOException, JSONException {
-        List<UpdateInfo> oldList = parseJson(oldJson, true);
-        List<UpdateInfo> newList = parseJson(newJson, true);
-        Set<String> oldIds = new HashSet<>();
-        for (UpdateInfo update : oldList) {
-            oldIds.add(update.getDownloadId());
-        }
+            throws IOException {
+        Set<String> oldIds = UpdatesListCache.getIds(oldJson);
         // In case of no new updates, the old list should
         // have all (if not more) the updates
-        for (UpdateInfo update : newList) {
-            if (!oldIds.contains(update.getDownloadId())) {
+        for (String id : UpdatesListCache.getIds(newJson)) {
+            if (!oldIds.contains(id)) {
                 return true;
             }
         }
@@ -236,33 +325,12 @@ public class Utils {
     }
 
     /**
-     * Get the offset to the compressed data of a file inside the given zip
-     *
-     * @param zipFile input zip file
-     * @param entryPath full path of the entry
-     * @return the offset of the compressed, or -1 if not found
-     * @throws IllegalArgumentException if the given entry is not found
+     * @return how many times the device booted, -1 if not known. Unlike the wall clock,
+     * it can't go backwards.
      */
-    public static long getZipEntryOffset(ZipFile zipFile, String entryPath) {
-        // Each entry has an header of (30 + n + m) bytes
-        // 'n' is the length of the file name
-        // 'm' is the length of the extra field
-        final int FIXED_HEADER_SIZE = 30;
-        Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
-        long offset = 0;
-        while (zipEntries.hasMoreElements()) {
-            ZipEntry entry = zipEntries.nextElement();
-            int n = entry.getName().length();
-            int m = entry.getExtra() == null ? 0 : entry.getExtra().length;
-            int headerSize = FIXED_HEADER_SIZE + n + m;
-            offset += headerSize;
-            if (entry.getName().equals(entryPath)) {
-                return offset;
-            }
-            offset += entry.getCompressedSize();
-        }
-        Log.e(TAG, "Entry " + entryPath + " not found");
-        throw new IllegalArgumentException("The given entry was not found");
+    public static int getBootCount(Context context) {
+        return Settings.Global.getInt(context.getContentResolver(),
+                Settings.Global.BOOT_COUNT, -1);
     }
 
     public static void removeUncryptFiles(File downloadPath) {
@@ -304,6 +372,16 @@ public class Utils {
             }
         }
 
+        // A package given to uncrypt was rewritten for the recovery during the reboot
+        int uncryptBootCount = preferences.getInt(Constants.PREF_INSTALL_UNCRYPT_BOOT_COUNT, -1);
+        if (uncryptBootCount != -1 && uncryptBootCount != getBootCount(context)) {
+            if (lastUpdatePath != null) {
+                Log.d(TAG, "Deleting " + lastUpdatePath + ", used by uncrypt");
+                new File(lastUpdatePath).delete();
+            }
+            preferences.edit().remove(Constants.PREF_INSTALL_UNCRYPT_BOOT_COUNT).apply();
+        }
+
         final String DOWNLOADS_CLEANUP_DONE = "cleanup_done";
         if (preferences.getBoolean(DOWNLOADS_CLEANUP_DONE, false)) {
             return;
@@ -319,10 +397,11 @@ public class Utils {
         }
 
         // Ideally the database is empty when we get here
-        UpdatesDbHelper dbHelper = new UpdatesDbHelper(context);
+        UpdatesDbHelper dbHelper = UpdatesDbHelper.getInstance(context);
         List<String> knownPaths = new ArrayList<>();
         for (UpdateInfo update : dbHelper.getUpdates()) {
             knownPaths.add(update.getFile().getAbsolutePath());
+            knownPaths.add(DownloadJournal.getFile(update.getFile()).getAbsolutePath());
         }
         for (File file : files) {
             if (!knownPaths.contains(file.getAbsolutePath())) {
@@ -359,16 +438,33 @@ public class Utils {
         return SystemProperties.getBoolean(Constants.PROP_AB_DEVICE, false);
     }
 
-    public static boolean isABUpdate(ZipFile zipFile) {
-        return zipFile.getEntry(Constants.AB_PAYLOAD_BIN_PATH) != null &&
-                zipFile.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH) != null;
+    public static boolean isABUpdate(ZipIndex index) {
+        return index.getEntry(Constants.AB_PAYLOAD_BIN_PATH) != null &&
+                index.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH) != null;
+    }
+
+    /**
+     * Read from the stored metadata of the package, the zip is opened only if the
+     * metadata is missing or outdated.
+     */
+    public static boolean isABUpdate(Context context, File file) throws IOException {
+        return PackageMetadata.get(context, file).isABUpdate();
     }
 
-    public static boolean isABUpdate(File file) throws IOException {
-        ZipFile zipFile = new ZipFile(file);
-        boolean isAB = isABUpdate(zipFile);
-        zipFile.close();
-        return isAB;
+    /**
+     * Whether A/B updates that weren't downloaded are installed straight from the mirror.
+     */
+    public static boolean isABStreamingEnabled(Context context) {
+        return isABDevice() && PreferenceManager.getDefaultSharedPreferences(context)
+                .getBoolean(Constants.PREF_AB_STREAMING, false);
+    }
+
+    /**
+     * Whether the update would be installed without downloading it first.
+     */
+    public static boolean canStreamUpdate(Context context, UpdateInfo update) {
+        return update.getPersistentStatus() != UpdateStatus.Persistent.VERIFIED &&
+                update.getAvailableOnline() && isABStreamingEnabled(context);
     }
 
     public static boolean hasTouchscreen(Context context) {
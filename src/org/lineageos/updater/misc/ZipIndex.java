@@ -0,0 +1,364 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.misc;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Entries of a zip file, read from its central directory. The offset of the data of an
+ * entry is read from its own local header the first time it's needed, since the local
+ * extra field can differ from the one in the central directory.
+ */
+public final class ZipIndex {
+
+    private static final String TAG = "ZipIndex";
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int ZIP64_EOCD_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_EOCD_LOCATOR_SIZE = 20;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_EOCD_SIZE = 56;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+
+    /**
+     * How much of the end of the file holds the end of central directory records.
+     */
+    public static final int TAIL_SIZE = EOCD_SIZE + MAX_COMMENT_SIZE + ZIP64_EOCD_LOCATOR_SIZE;
+
+    // Refuse to load absurdly large central directories and entries in memory
+    private static final int MAX_CENTRAL_DIRECTORY_SIZE = 16 * 1024 * 1024;
+    private static final int MAX_READ_SIZE = 1024 * 1024;
+
+    public static final int METHOD_STORED = 0;
+    public static final int METHOD_DEFLATED = 8;
+
+    // The indexes of the updates being installed
+    private static final int MAX_CACHED_FILES = 2;
+
+    private static final Map<String, ZipIndex> sCache =
+            new LinkedHashMap<String, ZipIndex>(MAX_CACHED_FILES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, ZipIndex> eldest) {
+                    return size() > MAX_CACHED_FILES;
+                }
+            };
+
+    /**
+     * Where the bytes of the zip are read from.
+     */
+    public interface Source {
+        long length();
+
+        ByteBuffer read(long offset, int length) throws IOException;
+    }
+
+    public static class Entry {
+        private final String mName;
+        private final int mMethod;
+        private final long mCompressedSize;
+        private final long mSize;
+        private final long mLocalHeaderOffset;
+        private volatile long mDataOffset = -1;
+
+        private Entry(String name, int method, long compressedSize, long size,
+                long localHeaderOffset) {
+            mName = name;
+            mMethod = method;
+            mCompressedSize = compressedSize;
+            mSize = size;
+            mLocalHeaderOffset = localHeaderOffset;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public int getMethod() {
+            return mMethod;
+        }
+
+        public long getCompressedSize() {
+            return mCompressedSize;
+        }
+
+        public long getSize() {
+            return mSize;
+        }
+    }
+
+    /**
+     * Memory map the parts of a local file that are read.
+     */
+    private static class FileSource implements Source {
+        private final File mFile;
+        private final long mLength;
+
+        private FileSource(File file, long length) {
+            mFile = file;
+            mLength = length;
+        }
+
+        @Override
+        public long length() {
+            return mLength;
+        }
+
+        @Override
+        public ByteBuffer read(long offset, int length) throws IOException {
+            try (FileChannel channel = new FileInputStream(mFile).getChannel()) {
+                // The mapping stays valid once the channel is closed
+                return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+            }
+        }
+    }
+
+    private final Source mSource;
+    private final long mLength;
+    private final long mLastModified;
+    private final Map<String, Entry> mEntries = new HashMap<>();
+
+    private ZipIndex(Source source, long lastModified) {
+        mSource = source;
+        mLength = source.length();
+        mLastModified = lastModified;
+    }
+
+    /**
+     * Get the index of a local zip. The index is parsed once and reused as long as the
+     * size and the modification time of the file don't change.
+     */
+    public static ZipIndex get(File file) throws IOException {
+        String key = file.getAbsolutePath();
+        long length = file.length();
+        long lastModified = file.lastModified();
+        synchronized (sCache) {
+            ZipIndex index = sCache.get(key);
+            if (index != null && index.mLength == length &&
+                    index.mLastModified == lastModified) {
+                return index;
+            }
+        }
+        if (!file.isFile()) {
+            throw new IOException(file + " doesn't exist");
+        }
+
+        ZipIndex index = new ZipIndex(new FileSource(file, length), lastModified);
+        index.readCentralDirectory();
+        synchronized (sCache) {
+            // Don't cache what was parsed if the file changed in the meantime
+            if (file.length() == length && file.lastModified() == lastModified) {
+                sCache.put(key, index);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Parse the central directory of a zip read from the given source.
+     */
+    public static ZipIndex read(Source source) throws IOException {
+        ZipIndex index = new ZipIndex(source, 0);
+        index.readCentralDirectory();
+        return index;
+    }
+
+    /**
+     * @return the entry, null if the zip doesn't contain it
+     */
+    public Entry getEntry(String name) {
+        return mEntries.get(name);
+    }
+
+    /**
+     * Get the offset of the data of the entry in the zip.
+     */
+    public long getDataOffset(Entry entry) throws IOException {
+        long offset = entry.mDataOffset;
+        if (offset >= 0) {
+            return offset;
+        }
+        ByteBuffer header = order(mSource.read(entry.mLocalHeaderOffset, LOCAL_HEADER_SIZE));
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new IOException("Invalid local header for " + entry.mName);
+        }
+        int nameLength = header.getShort(26) & 0xffff;
+        int extraLength = header.getShort(28) & 0xffff;
+        offset = entry.mLocalHeaderOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+        if (offset + entry.mCompressedSize > mLength) {
+            throw new IOException("Entry " + entry.mName + " goes past the end of the zip");
+        }
+        entry.mDataOffset = offset;
+        return offset;
+    }
+
+    /**
+     * Read the uncompressed content of a small entry.
+     */
+    public byte[] read(Entry entry) throws IOException {
+        if (entry.mCompressedSize > MAX_READ_SIZE || entry.mSize > MAX_READ_SIZE) {
+            throw new IOException("Entry " + entry.mName + " is too large");
+        }
+        ByteBuffer buffer = mSource.read(getDataOffset(entry), (int) entry.mCompressedSize);
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        if (entry.mMethod == METHOD_STORED) {
+            return data;
+        } else if (entry.mMethod != METHOD_DEFLATED) {
+            throw new IOException("Unsupported compression method " + entry.mMethod);
+        }
+
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data);
+            byte[] content = new byte[(int) entry.mSize];
+            int length = 0;
+            while (length < content.length && !inflater.finished()) {
+                int count = inflater.inflate(content, length, content.length - length);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += count;
+            }
+            if (length != content.length) {
+                throw new IOException("Truncated entry " + entry.mName);
+            }
+            return content;
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid entry " + entry.mName, e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private void readCentralDirectory() throws IOException {
+        long tailOffset = Math.max(0, mLength - TAIL_SIZE);
+        ByteBuffer tail = order(mSource.read(tailOffset, (int) (mLength - tailOffset)));
+        int tailLength = tail.remaining();
+        int eocd = -1;
+        for (int i = tailLength - EOCD_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == EOCD_SIGNATURE &&
+                    i + EOCD_SIZE + (tail.getShort(i + 20) & 0xffff) == tailLength) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new IOException("Not a zip file");
+        }
+
+        long entries = tail.getShort(eocd + 10) & 0xffff;
+        long size = tail.getInt(eocd + 12) & 0xffffffffL;
+        long offset = tail.getInt(eocd + 16) & 0xffffffffL;
+        if (entries == 0xffff || size == 0xffffffffL || offset == 0xffffffffL) {
+            int locator = eocd - ZIP64_EOCD_LOCATOR_SIZE;
+            if (locator < 0 || tail.getInt(locator) != ZIP64_EOCD_LOCATOR_SIGNATURE) {
+                throw new IOException("Missing zip64 end of central directory locator");
+            }
+            long recordOffset = tail.getLong(locator + 8);
+            if (recordOffset < 0 || recordOffset + ZIP64_EOCD_SIZE > mLength) {
+                throw new IOException("Invalid zip64 end of central directory locator");
+            }
+            ByteBuffer record = order(mSource.read(recordOffset, ZIP64_EOCD_SIZE));
+            if (record.getInt(0) != ZIP64_EOCD_SIGNATURE) {
+                throw new IOException("Invalid zip64 end of central directory");
+            }
+            entries = record.getLong(32);
+            size = record.getLong(40);
+            offset = record.getLong(48);
+        }
+        if (size < 0 || size > MAX_CENTRAL_DIRECTORY_SIZE || offset < 0 ||
+                offset + size > mLength) {
+            throw new IOException("Invalid central directory");
+        }
+
+        ByteBuffer directory = order(mSource.read(offset, (int) size));
+        int position = 0;
+        for (long i = 0; i < entries; i++) {
+            if (position + CENTRAL_HEADER_SIZE > size ||
+                    directory.getInt(position) != CENTRAL_HEADER_SIGNATURE) {
+                throw new IOException("Invalid central directory entry");
+            }
+            int method = directory.getShort(position + 10) & 0xffff;
+            long compressedSize = directory.getInt(position + 20) & 0xffffffffL;
+            long uncompressedSize = directory.getInt(position + 24) & 0xffffffffL;
+            int nameLength = directory.getShort(position + 28) & 0xffff;
+            int extraLength = directory.getShort(position + 30) & 0xffff;
+            int commentLength = directory.getShort(position + 32) & 0xffff;
+            long localHeaderOffset = directory.getInt(position + 42) & 0xffffffffL;
+            int next = position + CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+            if (next > size) {
+                throw new IOException("Invalid central directory entry");
+            }
+            byte[] name = new byte[nameLength];
+            for (int j = 0; j < nameLength; j++) {
+                name[j] = directory.get(position + CENTRAL_HEADER_SIZE + j);
+            }
+
+            // The values that don't fit in 32 bits are in the zip64 extra field, in order
+            int extra = position + CENTRAL_HEADER_SIZE + nameLength;
+            int extraEnd = extra + extraLength;
+            while (extra + 4 <= extraEnd) {
+                int id = directory.getShort(extra) & 0xffff;
+                int dataSize = directory.getShort(extra + 2) & 0xffff;
+                int data = extra + 4;
+                if (id == ZIP64_EXTRA_ID) {
+                    if (uncompressedSize == 0xffffffffL && data + 8 <= extraEnd) {
+                        uncompressedSize = directory.getLong(data);
+                        data += 8;
+                    }
+                    if (compressedSize == 0xffffffffL && data + 8 <= extraEnd) {
+                        compressedSize = directory.getLong(data);
+                        data += 8;
+                    }
+                    if (localHeaderOffset == 0xffffffffL && data + 8 <= extraEnd) {
+                        localHeaderOffset = directory.getLong(data);
+                    }
+                    break;
+                }
+                extra += 4 + dataSize;
+            }
+
+            String entryName = new String(name, StandardCharsets.UTF_8);
+            mEntries.put(entryName, new Entry(entryName, method, compressedSize,
+                    uncompressedSize, localHeaderOffset));
+            position = next;
+        }
+        Log.d(TAG, "Indexed " + mEntries.size() + " entries");
+    }
+
+    private static ByteBuffer order(ByteBuffer buffer) {
+        return buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -50,14 +50,28 @@ public class Update extends UpdateBase implements UpdateInfo {
     }
 
     @Override
-    public UpdateStatus getStatus() {
+    public synchronized UpdateStatus getStatus() {
         return mStatus;
     }
 
-    public void setStatus(UpdateStatus status) {
+    public synchronized void setStatus(UpdateStatus status) {
         mStatus = status;
     }
 
+    /**
+     * Change the status only if it's still the expected one.
+     *
+     * @return true if the status was changed
+     */
+    public synchronized boolean compareAndSetStatus(UpdateStatus expected,
+            UpdateStatus status) {
+        if (mStatus != expected) {
+            return false;
+        }
+        mStatus = status;
+        return true;
+    }
+
     @Override
     public int getPersistentStatus() {
         return mPersistentStatus;
@@ -17,6 +17,7 @@ package org.lineageos.updater.model;
 
 public enum UpdateStatus {
     UNKNOWN,
+    QUEUED,
     STARTING,
     DOWNLOADING,
     DOWNLOADED,
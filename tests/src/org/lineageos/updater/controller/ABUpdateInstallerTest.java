@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.controller;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.lineageos.updater.download.StubHttpServer;
+import org.lineageos.updater.model.Update;
+import org.lineageos.updater.model.UpdateStatus;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class ABUpdateInstallerTest {
+
+    private static final String DOWNLOAD_ID = "0123456789abcdef";
+    private static final long TIMEOUT_MS = 5000;
+
+    // UpdateEngine.UpdateStatusConstants, the hidden class isn't available here
+    private static final int STATUS_IDLE = 0;
+    private static final int STATUS_DOWNLOADING = 3;
+
+    private static final String[] PAYLOAD_PROPERTIES = {
+            "FILE_HASH=KlxXgxTQJ0rVbTfmoXGUNeF0Ni0pAcAvDYuKs6RkVZM=",
+            "FILE_SIZE=4096",
+            "METADATA_HASH=6vVgOSeRQOsK0DMdTbdwhQTQkp2fKBKW4zvjEpVsHiQ=",
+            "METADATA_SIZE=512",
+    };
+
+    private static final Pattern RANGE = Pattern.compile("\r\nRange: bytes=(\\d*)-(\\d*)\r\n");
+
+    private final FakeSharedPreferences mPreferences = new FakeSharedPreferences();
+    private final FakeUpdateEngine mUpdateEngine = new FakeUpdateEngine();
+    // Released to let the server reply
+    private volatile CountDownLatch mReply = new CountDownLatch(1);
+    private final CountDownLatch mReplied = new CountDownLatch(1);
+
+    private byte[] mZip;
+    private byte[] mPayload;
+    private StubHttpServer mServer;
+    private String mUrl;
+    private Context mContext;
+    private UpdaterController mUpdaterController;
+    private Update mUpdate;
+
+    @Before
+    public void setUp() throws Exception {
+        mPayload = new byte[4096];
+        new Random(42).nextBytes(mPayload);
+        mZip = createZip(mPayload, String.join("\n", PAYLOAD_PROPERTIES) + "\n");
+        mServer = new StubHttpServer(this::serveZip);
+        mUrl = mServer.getUrl("/ota.zip");
+
+        mContext = mock(Context.class);
+        when(mContext.getApplicationContext()).thenReturn(mContext);
+        when(mContext.getSharedPreferences(anyString(), anyInt())).thenReturn(mPreferences);
+
+        mUpdate = new Update();
+        mUpdate.setDownloadId(DOWNLOAD_ID);
+        mUpdate.setDownloadUrl(mUrl);
+        mUpdaterController = mock(UpdaterController.class);
+        when(mUpdaterController.getActualUpdate(DOWNLOAD_ID)).thenReturn(mUpdate);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mReply.countDown();
+        mServer.close();
+    }
+
+    private static ZipEntry createStoredEntry(String name, byte[] data) {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(data.length);
+        entry.setCompressedSize(data.length);
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        entry.setCrc(crc.getValue());
+        return entry;
+    }
+
+    private static byte[] createZip(byte[] payload, String properties) throws IOException {
+        ByteArrayOutputStream zip = new ByteArrayOutputStream();
+        try (ZipOutputStream out = new ZipOutputStream(zip)) {
+            out.putNextEntry(createStoredEntry("META-INF/com/android/metadata",
+                    new byte[0]));
+            out.closeEntry();
+            byte[] propertiesData = properties.getBytes(StandardCharsets.UTF_8);
+            out.putNextEntry(createStoredEntry("payload_properties.txt", propertiesData));
+            out.write(propertiesData);
+            out.closeEntry();
+            out.putNextEntry(createStoredEntry("payload.bin", payload));
+            out.write(payload);
+            out.closeEntry();
+        }
+        return zip.toByteArray();
+    }
+
+    private long getPayloadOffset() {
+        for (int i = 0; i + mPayload.length <= mZip.length; i++) {
+            boolean found = true;
+            for (int j = 0; j < mPayload.length && found; j++) {
+                found = mZip[i + j] == mPayload[j];
+            }
+            if (found) {
+                return i;
+            }
+        }
+        throw new AssertionError("Payload not found");
+    }
+
+    private void serveZip(String request, OutputStream out)
+            throws IOException, InterruptedException {
+        if (!mReply.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+            return;
+        }
+        Matcher matcher = RANGE.matcher(request);
+        if (!matcher.find()) {
+            StubHttpServer.write(out, "HTTP/1.1 416 Range Not Satisfiable\r\n\r\n");
+            return;
+        }
+        int start;
+        int end;
+        if (matcher.group(1).isEmpty()) {
+            start = Math.max(0, mZip.length - Integer.parseInt(matcher.group(2)));
+            end = mZip.length - 1;
+        } else {
+            start = Integer.parseInt(matcher.group(1));
+            end = matcher.group(2).isEmpty() ? mZip.length - 1 :
+                    Math.min(mZip.length - 1, Integer.parseInt(matcher.group(2)));
+        }
+        StubHttpServer.write(out, "HTTP/1.1 206 Partial Content\r\n" +
+                "Content-Range: bytes " + start + "-" + end + "/" + mZip.length + "\r\n" +
+                "Content-Length: " + (end - start + 1) + "\r\n\r\n");
+        out.write(mZip, start, end - start + 1);
+        out.flush();
+        mReplied.countDown();
+    }
+
+    private ABUpdateInstaller createInstaller(UpdateEngineProxy updateEngine) {
+        return new ABUpdateInstaller(mContext, mUpdaterController, updateEngine);
+    }
+
+    /**
+     * Wait until the streamed update was handed to update_engine.
+     */
+    private void awaitPayloadApplied(ABUpdateInstaller installer) throws InterruptedException {
+        assertTrue(mUpdateEngine.awaitApplyPayload(TIMEOUT_MS));
+        // The preparing thread holds the lock of the installer until it's done
+        synchronized (installer) {
+        }
+    }
+
+    @Test
+    public void installStreamingAppliesPayloadFromMirror() throws Exception {
+        ABUpdateInstaller installer = createInstaller(mUpdateEngine);
+        mReply.countDown();
+
+        assertTrue(installer.installStreaming(DOWNLOAD_ID));
+        assertTrue(ABUpdateInstaller.isInstallingUpdate(mContext));
+        awaitPayloadApplied(installer);
+
+        assertEquals(1, mUpdateEngine.mBindCount);
+        assertEquals(mUrl, mUpdateEngine.mUrl);
+        assertEquals(getPayloadOffset(), mUpdateEngine.mOffset);
+        assertEquals(mPayload.length, mUpdateEngine.mSize);
+        assertArrayEquals(PAYLOAD_PROPERTIES, mUpdateEngine.mHeaderKeyValuePairs);
+        assertEquals(UpdateStatus.INSTALLING, mUpdate.getStatus());
+        assertTrue(ABUpdateInstaller.isInstallingUpdate(mContext, DOWNLOAD_ID));
+    }
+
+    @Test
+    public void installStreamingReportsProgress() throws Exception {
+        ABUpdateInstaller installer = createInstaller(mUpdateEngine);
+        mReply.countDown();
+        assertTrue(installer.installStreaming(DOWNLOAD_ID));
+        awaitPayloadApplied(installer);
+
+        mUpdateEngine.mCallback.onStatusUpdate(STATUS_DOWNLOADING, 0.5f);
+
+        assertEquals(50, mUpdate.getInstallProgress());
+        assertFalse(mUpdate.getFinalizing());
+    }
+
+    @Test
+    public void installStreamingFailsWhenMirrorIsUnreachable() throws Exception {
+        mServer.close();
+        ABUpdateInstaller installer = createInstaller(mUpdateEngine);
+
+        assertTrue(installer.installStreaming(DOWNLOAD_ID));
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        while (ABUpdateInstaller.isInstallingUpdate(mContext) &&
+                System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(ABUpdateInstaller.isInstallingUpdate(mContext));
+        assertEquals(UpdateStatus.INSTALLATION_FAILED, mUpdate.getStatus());
+        assertEquals(0, mUpdateEngine.mBindCount);
+    }
+
+    @Test
+    public void cancelWhilePreparingNeverAppliesPayload() throws Exception {
+        ABUpdateInstaller installer = createInstaller(mUpdateEngine);
+        assertTrue(installer.installStreaming(DOWNLOAD_ID));
+
+        assertTrue(installer.cancel());
+        assertFalse(ABUpdateInstaller.isInstallingUpdate(mContext));
+        assertEquals(UpdateStatus.INSTALLATION_CANCELLED, mUpdate.getStatus());
+
+        // The metadata arrives after the cancellation
+        mReply.countDown();
+        assertTrue(mReplied.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertFalse(mUpdateEngine.awaitApplyPayload(500));
+        assertEquals(0, mUpdateEngine.mBindCount);
+        assertEquals(0, mUpdateEngine.mCancelCount);
+        assertEquals(UpdateStatus.INSTALLATION_CANCELLED, mUpdate.getStatus());
+        assertFalse(ABUpdateInstaller.isInstallingUpdate(mContext));
+    }
+
+    @Test
+    public void cancelAfterPayloadAppliedCancelsUpdateEngine() throws Exception {
+        ABUpdateInstaller installer = createInstaller(mUpdateEngine);
+        mReply.countDown();
+        assertTrue(installer.installStreaming(DOWNLOAD_ID));
+        awaitPayloadApplied(installer);
+
+        assertTrue(installer.cancel());
+
+        assertEquals(1, mUpdateEngine.mCancelCount);
+        assertEquals(UpdateStatus.INSTALLATION_CANCELLED, mUpdate.getStatus());
+        assertFalse(ABUpdateInstaller.isInstallingUpdate(mContext));
+    }
+
+    @Test
+    public void reconnectWhilePreparingDoesNotBind() throws Exception {
+        ABUpdateInstaller installer = createInstaller(mUpdateEngine);
+        assertTrue(installer.installStreaming(DOWNLOAD_ID));
+
+        assertTrue(installer.reconnect());
+        assertEquals(0, mUpdateEngine.mBindCount);
+
+        mReply.countDown();
+        awaitPayloadApplied(installer);
+        assertEquals(1, mUpdateEngine.mBindCount);
+    }
+
+    @Test
+    public void reconnectWithoutInstallationFails() {
+        ABUpdateInstaller installer = createInstaller(mUpdateEngine);
+
+        assertFalse(installer.reconnect());
+        assertEquals(0, mUpdateEngine.mBindCount);
+    }
+
+    @Test
+    public void reconnectAfterRestartBindsOnce() throws Exception {
+        mReply.countDown();
+        ABUpdateInstaller previous = createInstaller(mUpdateEngine);
+        assertTrue(previous.installStreaming(DOWNLOAD_ID));
+        awaitPayloadApplied(previous);
+
+        // The service was restarted, only the preferences are left
+        FakeUpdateEngine updateEngine = new FakeUpdateEngine();
+        ABUpdateInstaller installer = createInstaller(updateEngine);
+
+        assertTrue(installer.reconnect());
+        assertTrue(installer.reconnect());
+        assertEquals(1, updateEngine.mBindCount);
+        assertNotNull(updateEngine.mCallback);
+    }
+
+    @Test
+    public void reconnectReportsFailureToBind() throws Exception {
+        mReply.countDown();
+        ABUpdateInstaller previous = createInstaller(mUpdateEngine);
+        assertTrue(previous.installStreaming(DOWNLOAD_ID));
+        awaitPayloadApplied(previous);
+
+        FakeUpdateEngine updateEngine = new FakeUpdateEngine();
+        updateEngine.mBindResult = false;
+        ABUpdateInstaller installer = createInstaller(updateEngine);
+
+        assertFalse(installer.reconnect());
+    }
+
+    @Test
+    public void idleAfterReconnectClearsInstallation() throws Exception {
+        mReply.countDown();
+        ABUpdateInstaller previous = createInstaller(mUpdateEngine);
+        assertTrue(previous.installStreaming(DOWNLOAD_ID));
+        awaitPayloadApplied(previous);
+
+        // update_engine isn't installing anything after the restart
+        FakeUpdateEngine updateEngine = new FakeUpdateEngine();
+        ABUpdateInstaller installer = createInstaller(updateEngine);
+        assertTrue(installer.reconnect());
+        updateEngine.mCallback.onStatusUpdate(STATUS_IDLE, 0);
+
+        assertFalse(ABUpdateInstaller.isInstallingUpdate(mContext));
+        assertFalse(ABUpdateInstaller.isWaitingForReboot(mContext, DOWNLOAD_ID));
+    }
+
+    @Test
+    public void idleWhilePreparingKeepsInstallation() throws Exception {
+        ABUpdateInstaller installer = createInstaller(mUpdateEngine);
+        mReply.countDown();
+        assertTrue(installer.installStreaming(DOWNLOAD_ID));
+        awaitPayloadApplied(installer);
+        assertTrue(installer.cancel());
+
+        // Installed again while update_engine reports that it stopped
+        mReply = new CountDownLatch(1);
+        assertTrue(installer.installStreaming(DOWNLOAD_ID));
+        mUpdateEngine.mCallback.onStatusUpdate(STATUS_IDLE, 0);
+
+        assertTrue(ABUpdateInstaller.isInstallingUpdate(mContext));
+        assertEquals(UpdateStatus.INSTALLING, mUpdate.getStatus());
+    }
+}
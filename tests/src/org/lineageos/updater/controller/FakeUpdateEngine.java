@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.controller;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the calls that would go to update_engine.
+ */
+class FakeUpdateEngine implements UpdateEngineProxy {
+
+    private final CountDownLatch mPayloadApplied = new CountDownLatch(1);
+
+    volatile boolean mBindResult = true;
+    volatile Callback mCallback;
+    volatile int mBindCount;
+    volatile int mCancelCount;
+    volatile String mUrl;
+    volatile long mOffset;
+    volatile long mSize;
+    volatile String[] mHeaderKeyValuePairs;
+
+    /**
+     * @return whether applyPayload was called within the given time
+     */
+    boolean awaitApplyPayload(long timeoutMillis) throws InterruptedException {
+        return mPayloadApplied.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public boolean bind(Callback callback) {
+        mBindCount++;
+        mCallback = callback;
+        return mBindResult;
+    }
+
+    @Override
+    public void applyPayload(String url, long offset, long size,
+            String[] headerKeyValuePairs) {
+        mUrl = url;
+        mOffset = offset;
+        mSize = size;
+        mHeaderKeyValuePairs = headerKeyValuePairs;
+        mPayloadApplied.countDown();
+    }
+
+    @Override
+    public void cancel() {
+        mCancelCount++;
+    }
+
+    @Override
+    public void suspend() {
+    }
+
+    @Override
+    public void resume() {
+    }
+
+    @Override
+    public void setPerformanceMode(boolean enable) {
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.download;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+public class MirrorProberTest {
+
+    private static final int BODY_SIZE = 64 * 1024;
+    private static final long TIMEOUT_MS = 2000;
+
+    private final List<StubHttpServer> mServers = new ArrayList<>();
+    // Released when the test ends, so that stalled handlers return
+    private final CountDownLatch mDone = new CountDownLatch(1);
+
+    @After
+    public void tearDown() throws Exception {
+        mDone.countDown();
+        for (StubHttpServer server : mServers) {
+            server.close();
+        }
+    }
+
+    private String serve(StubHttpServer.Handler handler) throws Exception {
+        StubHttpServer server = new StubHttpServer(handler);
+        mServers.add(server);
+        return server.getUrl("/ota.zip");
+    }
+
+    private static void replyPartialContent(OutputStream out) throws IOException {
+        StubHttpServer.write(out, "HTTP/1.1 206 Partial Content\r\n" +
+                "Content-Range: bytes 0-" + (BODY_SIZE - 1) + "/" + BODY_SIZE + "\r\n" +
+                "Content-Length: " + BODY_SIZE + "\r\n\r\n");
+        out.write(new byte[BODY_SIZE]);
+        out.flush();
+    }
+
+    private static List<MirrorProber.Result> rank(String... namesAndUrls)
+            throws InterruptedException {
+        Map<String, String> mirrors = new LinkedHashMap<>();
+        for (int i = 0; i < namesAndUrls.length; i += 2) {
+            mirrors.put(namesAndUrls[i], namesAndUrls[i + 1]);
+        }
+        return MirrorProber.rank(mirrors, TIMEOUT_MS);
+    }
+
+    @Test
+    public void rankMeasuresMirrorThatReplied() throws Exception {
+        String url = serve((request, out) -> {
+            assertTrue(request, request.startsWith("GET /ota.zip HTTP/1.1\r\n"));
+            assertTrue(request, request.contains("\r\nRange: bytes=0-"));
+            replyPartialContent(out);
+        });
+
+        List<MirrorProber.Result> results = rank("mirror1", url);
+
+        assertEquals(1, results.size());
+        MirrorProber.Result result = results.get(0);
+        assertEquals("mirror1", result.getName());
+        assertEquals(url, result.getUrl());
+        assertFalse(result.isFailed());
+        assertEquals(0, result.getTlsMillis());
+        assertTrue(result.getBytesPerSecond() > 0);
+    }
+
+    @Test
+    public void rankFollowsRedirects() throws Exception {
+        String target = serve((request, out) -> replyPartialContent(out));
+        String url = serve((request, out) -> StubHttpServer.write(out,
+                "HTTP/1.1 302 Found\r\nLocation: " + target + "\r\n\r\n"));
+
+        List<MirrorProber.Result> results = rank("mirror1", url);
+
+        assertFalse(results.get(0).isFailed());
+    }
+
+    @Test
+    public void rankGivesUpOnMirrorPastTheDeadline() throws Exception {
+        String url = serve((request, out) -> mDone.await());
+
+        long start = System.nanoTime();
+        List<MirrorProber.Result> results = rank("mirror1", url);
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+        assertEquals(1, results.size());
+        assertTrue(results.get(0).isFailed());
+        assertTrue("Took " + elapsedMillis + "ms", elapsedMillis < TIMEOUT_MS + 1000);
+    }
+
+    @Test
+    public void rankFailsMirrorReplyingWithError() throws Exception {
+        String url = serve((request, out) -> StubHttpServer.write(out,
+                "HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n"));
+
+        List<MirrorProber.Result> results = rank("mirror1", url);
+
+        assertTrue(results.get(0).isFailed());
+    }
+
+    @Test
+    public void rankMeasuresMirrorIgnoringTheRange() throws Exception {
+        // The beginning of the whole file is as good a sample
+        String url = serve((request, out) -> {
+            StubHttpServer.write(out, "HTTP/1.1 200 OK\r\n" +
+                    "Content-Length: " + BODY_SIZE + "\r\n\r\n");
+            out.write(new byte[BODY_SIZE]);
+            out.flush();
+        });
+
+        List<MirrorProber.Result> results = rank("mirror1", url);
+
+        assertFalse(results.get(0).isFailed());
+    }
+
+    @Test
+    public void rankFailsMirrorWithTruncatedHeaders() throws Exception {
+        String url = serve((request, out) -> StubHttpServer.write(out,
+                "HTTP/1.1 206 Partial Content\r\nContent-Len"));
+
+        List<MirrorProber.Result> results = rank("mirror1", url);
+
+        assertTrue(results.get(0).isFailed());
+    }
+
+    @Test
+    public void rankFailsMirrorWithoutBody() throws Exception {
+        String url = serve((request, out) -> StubHttpServer.write(out,
+                "HTTP/1.1 206 Partial Content\r\n" +
+                        "Content-Length: " + BODY_SIZE + "\r\n\r\n"));
+
+        List<MirrorProber.Result> results = rank("mirror1", url);
+
+        assertTrue(results.get(0).isFailed());
+    }
+
+    @Test
+    public void rankMeasuresTruncatedBody() throws Exception {
+        // What was read before the connection was closed is still a sample
+        String url = serve((request, out) -> {
+            StubHttpServer.write(out, "HTTP/1.1 206 Partial Content\r\n" +
+                    "Content-Length: " + BODY_SIZE + "\r\n\r\n");
+            out.write(new byte[BODY_SIZE / 2]);
+            out.flush();
+        });
+
+        List<MirrorProber.Result> results = rank("mirror1", url);
+
+        assertFalse(results.get(0).isFailed());
+    }
+
+    @Test
+    public void rankPutsFailedMirrorsLast() throws Exception {
+        String broken = serve((request, out) -> StubHttpServer.write(out,
+                "HTTP/1.1 500 Internal Server Error\r\nContent-Length: 0\r\n\r\n"));
+        String working = serve((request, out) -> replyPartialContent(out));
+
+        List<MirrorProber.Result> results = rank("broken", broken, "working", working);
+
+        assertEquals(2, results.size());
+        assertEquals("working", results.get(0).getName());
+        assertFalse(results.get(0).isFailed());
+        assertEquals("broken", results.get(1).getName());
+        assertTrue(results.get(1).isFailed());
+    }
+}
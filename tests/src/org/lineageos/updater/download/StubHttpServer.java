@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.download;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * HTTP server on the loopback interface that hands every connection to a handler,
+ * so that tests can reply with whatever a broken mirror would send.
+ */
+public class StubHttpServer implements AutoCloseable {
+
+    public interface Handler {
+        /**
+         * @param request the request line and the headers
+         */
+        void handle(String request, OutputStream out) throws IOException,
+                InterruptedException;
+    }
+
+    private final ServerSocket mServerSocket;
+    private final Thread mThread;
+
+    public StubHttpServer(Handler handler) throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        mThread = new Thread(() -> {
+            while (!mServerSocket.isClosed()) {
+                Socket socket;
+                try {
+                    socket = mServerSocket.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                Thread connection = new Thread(() -> {
+                    try (Socket s = socket) {
+                        handler.handle(readRequest(s.getInputStream()), s.getOutputStream());
+                    } catch (IOException | InterruptedException e) {
+                        // The client went away
+                    }
+                });
+                connection.setDaemon(true);
+                connection.start();
+            }
+        });
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    public String getUrl(String path) {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+    }
+
+    private static String readRequest(InputStream in) throws IOException {
+        StringBuilder request = new StringBuilder();
+        while (request.indexOf("\r\n\r\n") < 0) {
+            int b = in.read();
+            if (b == -1) {
+                break;
+            }
+            request.append((char) b);
+        }
+        return request.toString();
+    }
+
+    public static void write(OutputStream out, String s) throws IOException {
+        out.write(s.getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mServerSocket.close();
+    }
+}